@@ -0,0 +1,21 @@
+-- Stage timings of completed branch switches, written by MainDatabase#saveSwitchTimings.
+-- All stage durations are in milliseconds, time is the completion time as a unix timestamp.
+CREATE TABLE IF NOT EXISTS `switch_timings` (
+  `id` INT NOT NULL AUTO_INCREMENT,
+  `instance` INT NOT NULL,
+  `time` BIGINT NOT NULL,
+  `outcome` VARCHAR(16) NOT NULL,
+  `master` BIGINT NOT NULL,
+  `fetch` BIGINT NOT NULL,
+  `merge` BIGINT NOT NULL,
+  `commit` BIGINT NOT NULL,
+  `push` BIGINT NOT NULL,
+  `wiki` BIGINT NOT NULL,
+  `diff` BIGINT NOT NULL,
+  `news_clear` BIGINT NOT NULL,
+  `news_sync` BIGINT NOT NULL,
+  `news_links` BIGINT NOT NULL,
+  `statements` INT NOT NULL,
+  PRIMARY KEY (`id`),
+  KEY `instance_time` (`instance`, `time`)
+);
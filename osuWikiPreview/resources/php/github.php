@@ -0,0 +1,15 @@
+<?php
+// GitHub connection configuration mounted over config/github.php of osu! web instances.
+// Identical to the stock configuration except that the main connection is pointed at
+// the content server of the bot, which is set as the GitHub Enterprise host so the
+// GitHub client sends all REST API requests there instead of to api.github.com.
+return [
+	'default' => 'main',
+	'connections' => [
+		'main' => [
+			'method' => 'token',
+			'token' => env('GITHUB_TOKEN'),
+			'enterprise' => env('GITHUB_API_URL'),
+		],
+	],
+];
@@ -0,0 +1,31 @@
+// Persistent osu! web artisan worker, boots Laravel once and then evaluates
+// one JSON encoded command per line read from standard input. Each command
+// is answered by a single result line starting with the result sentinel.
+// Unlike tinker there are no class aliases, so commands have to reference
+// classes by their fully qualified name.
+require 'vendor/autoload.php';
+fwrite(STDOUT, "\n@@pid " . getmypid() . "\n");
+fflush(STDOUT);
+$app = require 'bootstrap/app.php';
+$app->make(Illuminate\Contracts\Console\Kernel::class)->bootstrap();
+
+fwrite(STDOUT, "\n@@ready\n");
+fflush(STDOUT);
+
+while(($line = fgets(STDIN)) !== false){
+	$request = json_decode($line, true);
+	if(!is_array($request)){
+		continue;
+	}
+
+	$result = ['id' => $request['id'], 'ok' => true];
+	try{
+		eval($request['code'] . ';');
+	}catch(Throwable $e){
+		$result['ok'] = false;
+		$result['error'] = get_class($e) . ': ' . $e->getMessage();
+	}
+
+	fwrite(STDOUT, "\n@@result " . json_encode($result) . "\n");
+	fflush(STDOUT);
+}
@@ -0,0 +1,401 @@
+/*
+ * osu! wiki preview site
+ * Copyright (C) 2023  Roan Hofland (roan@roanh.dev) and contributors.
+ * GitHub Repository: https://github.com/RoanH/osuWikiPreview
+ * GitLab Repository: https://git.roanh.dev/roan/osuwikipreview
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package dev.roanh.wiki;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import io.prometheus.metrics.core.datapoints.Timer;
+import io.prometheus.metrics.core.metrics.Counter;
+import io.prometheus.metrics.core.metrics.Summary;
+
+import dev.roanh.isla.reporting.Priority;
+import dev.roanh.isla.reporting.Severity;
+import dev.roanh.wiki.data.Instance;
+import dev.roanh.wiki.exception.DockerException;
+import dev.roanh.wiki.exception.WebException;
+
+/**
+ * Long running artisan worker inside the container of an osu! web instance. The worker
+ * boots Laravel once and then evaluates commands read from its standard input, which
+ * avoids the cost of booting a fresh tinker session for every command. Commands and
+ * results are exchanged as single lines of JSON. The worker is health checked after
+ * being idle and restarted when it crashed. If the worker cannot be started at all,
+ * commands fall back to a fresh tinker session. Killing the docker exec client does
+ * not stop the PHP process in the container, so workers that are killed because of
+ * a timeout or cancellation are also killed inside the container by process ID.
+ * @author Roan
+ */
+public class ArtisanWorker{
+	/**
+	 * Logger used for worker output produced before any job used the worker.
+	 */
+	private static final Logger logger = LoggerFactory.getLogger(ArtisanWorker.class);
+	/**
+	 * Summary of the time taken by artisan commands by instance and execution mode.
+	 */
+	private static final Summary commandTime = Summary.builder().name("wikipreview_artisan_time").help("Time taken by artisan commands.").labelNames("instance", "mode").quantile(0.5D).quantile(0.9D).register();
+	/**
+	 * Counter for the number of worker restarts by instance.
+	 */
+	private static final Counter restarts = Counter.builder().name("wikipreview_artisan_restarts").help("Number of artisan worker restarts.").labelNames("instance").register();
+	/**
+	 * Line written by the worker once Laravel finished booting.
+	 */
+	private static final String READY = "@@ready";
+	/**
+	 * Prefix of the line written by the worker with its process ID in the container.
+	 */
+	private static final String PID = "@@pid ";
+	/**
+	 * Prefix of the lines written by the worker with command results.
+	 */
+	private static final String RESULT = "@@result ";
+	/**
+	 * Maximum time to wait for the worker to boot.
+	 */
+	private static final Duration START_TIMEOUT = Duration.ofMinutes(2L);
+	/**
+	 * Maximum time a single command is allowed to take.
+	 */
+	private static final Duration COMMAND_TIMEOUT = Duration.ofMinutes(15L);
+	/**
+	 * Maximum time a health check is allowed to take.
+	 */
+	private static final Duration HEALTH_TIMEOUT = Duration.ofSeconds(10L);
+	/**
+	 * Time after which an idle worker is health checked before it is used again.
+	 */
+	private static final Duration HEALTH_INTERVAL = Duration.ofMinutes(1L);
+	/**
+	 * Maximum time killing a worker inside its container is allowed to take.
+	 */
+	private static final Duration KILL_TIMEOUT = Duration.ofSeconds(30L);
+	/**
+	 * Executor used to kill workers that exceed their deadline.
+	 */
+	private static final ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor();
+	/**
+	 * The PHP source code of the worker.
+	 */
+	private static final String SCRIPT;
+	/**
+	 * The instance this worker runs commands for.
+	 */
+	private final Instance instance;
+	/**
+	 * The ID of the instance used as a metric label.
+	 */
+	private final String label;
+	/**
+	 * The worker process or null if the worker is not running.
+	 */
+	private Process process = null;
+	/**
+	 * The process ID of the worker inside the container or -1 if not known.
+	 */
+	private volatile long pid = -1L;
+	/**
+	 * Writer for the standard input of the worker.
+	 */
+	private BufferedWriter input;
+	/**
+	 * Reader for the standard output of the worker.
+	 */
+	private BufferedReader output;
+	/**
+	 * Receiver for output of the worker, the output receiver of the job that last used the worker.
+	 */
+	private volatile Consumer<String> sink = logger::info;
+	/**
+	 * The instant the worker last completed a command.
+	 */
+	private Instant lastUsed;
+	/**
+	 * The ID for the next command.
+	 */
+	private int nextId = 1;
+	
+	/**
+	 * Constructs a new artisan worker, the worker is started once it is first used.
+	 * @param instance The instance to run commands for.
+	 */
+	public ArtisanWorker(Instance instance){
+		this.instance = instance;
+		label = String.valueOf(instance.getId());
+	}
+	
+	/**
+	 * Runs the given PHP code in the Laravel application of the instance.
+	 * @param code The code to run.
+	 * @throws WebException When the code failed or the worker crashed.
+	 */
+	public synchronized void run(String code) throws WebException{
+		sink = JobQueue.output();
+		try(Timer _ = commandTime.labelValues(label, "worker").startTimer()){
+			if(process != null && (!process.isAlive() || (lastUsed.plus(HEALTH_INTERVAL).isBefore(Instant.now()) && !isHealthy()))){
+				restarts.labelValues(label).inc();
+				close();
+			}
+			
+			try{
+				if(process == null){
+					start();
+				}
+			}catch(IOException e){
+				checkCancelled();
+				Main.client.logError(e, "[ArtisanWorker] Failed to start artisan worker, falling back to tinker", Severity.MINOR, Priority.LOW);
+				close();
+				runCold(code);
+				return;
+			}
+			
+			try{
+				execute(code, COMMAND_TIMEOUT);
+			}catch(IOException e){
+				//the worker crashed, retry once with a fresh worker
+				checkCancelled();
+				restarts.labelValues(label).inc();
+				close();
+				
+				try{
+					start();
+					execute(code, COMMAND_TIMEOUT);
+				}catch(IOException retry){
+					close();
+					retry.addSuppressed(e);
+					throw new WebException(retry);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Runs the given PHP code in a fresh tinker session in the container of the instance.
+	 * @param code The code to run.
+	 * @throws WebException When an exception occurs.
+	 */
+	public void runCold(String code) throws WebException{
+		try(Timer _ = commandTime.labelValues(label, "cold").startTimer()){
+			int exit = Main.docker.exec(instance.getWebContainer(), List.of("php", "artisan", "tinker", "--execute=" + code), JobQueue.output(), COMMAND_TIMEOUT);
+			if(exit != 0){
+				throw new WebException("Tinker exited with exit code: " + exit);
+			}
+		}
+	}
+	
+	/**
+	 * Stops the worker if it is running.
+	 */
+	public synchronized void close(){
+		if(process != null){
+			try{
+				//closing standard input makes the worker exit
+				input.close();
+				if(!process.waitFor(5, TimeUnit.SECONDS)){
+					kill(process);
+				}
+			}catch(IOException ignore){
+				kill(process);
+			}catch(InterruptedException ignore){
+				kill(process);
+				Thread.currentThread().interrupt();
+			}
+			
+			process = null;
+			pid = -1L;
+		}
+	}
+	
+	/**
+	 * Kills the given worker process and the PHP process it runs inside the container.
+	 * Only the docker exec client is killed directly, the PHP process is killed in
+	 * the background as it requires another exec in the container.
+	 * @param worker The worker process to kill.
+	 */
+	private void kill(Process worker){
+		worker.destroyForcibly();
+		long target = pid;
+		if(target > 0L){
+			watchdog.execute(()->{
+				try{
+					Main.docker.exec(instance.getWebContainer(), List.of("php", "-r", "posix_kill(" + target + ", 9);"), _->{}, KILL_TIMEOUT);
+				}catch(DockerException e){
+					Main.client.logError(e, "[ArtisanWorker] Failed to kill artisan worker in its container", Severity.MINOR, Priority.LOW);
+				}
+			});
+		}
+	}
+	
+	/**
+	 * Checks if the worker still responds to commands.
+	 * @return True if the worker is healthy.
+	 */
+	private boolean isHealthy(){
+		try{
+			execute("null", HEALTH_TIMEOUT);
+			return true;
+		}catch(IOException | WebException ignore){
+			return false;
+		}
+	}
+	
+	/**
+	 * Starts the worker process and waits for Laravel to finish booting.
+	 * @throws IOException When the worker failed to start.
+	 */
+	private void start() throws IOException{
+		ProcessBuilder builder = new ProcessBuilder("docker", "exec", "-i", instance.getWebContainer(), "php", "-r", SCRIPT);
+		builder.directory(Main.DEPLOY_PATH);
+		process = builder.start();
+		pid = -1L;
+		input = process.outputWriter(StandardCharsets.UTF_8);
+		output = process.inputReader(StandardCharsets.UTF_8);
+		
+		Process worker = process;
+		BufferedReader errors = process.errorReader(StandardCharsets.UTF_8);
+		Thread.ofPlatform().daemon().name("artisan-worker-" + label).start(()->forwardErrors(errors));
+		
+		ScheduledFuture<?> deadline = watchdog.schedule(()->kill(worker), START_TIMEOUT.toMillis(), TimeUnit.MILLISECONDS);
+		JobQueue.setCancelHook(()->kill(worker));
+		try{
+			String line;
+			while((line = output.readLine()) != null){
+				if(line.startsWith(PID)){
+					pid = Long.parseLong(line.substring(PID.length()));
+				}else if(line.equals(READY)){
+					lastUsed = Instant.now();
+					return;
+				}
+			}
+			
+			throw new IOException("Artisan worker exited before it was ready.");
+		}finally{
+			JobQueue.setCancelHook(null);
+			deadline.cancel(false);
+		}
+	}
+	
+	/**
+	 * Forwards the standard error of a worker to the job that last used the worker
+	 * until the worker exits.
+	 * @param errors Reader for the standard error of the worker.
+	 */
+	private void forwardErrors(BufferedReader errors){
+		try(errors){
+			String line;
+			while((line = errors.readLine()) != null){
+				sink.accept("[stderr] " + line);
+			}
+		}catch(IOException ignore){
+			//the worker exited
+		}
+	}
+	
+	/**
+	 * Stops the worker and fails the command if the job running it was cancelled.
+	 * Cancelling a job kills the worker, so a worker that exited because of a
+	 * cancellation must not be restarted to retry the command.
+	 * @throws WebException When the job running the command was cancelled.
+	 */
+	private void checkCancelled() throws WebException{
+		if(JobQueue.isCancelled()){
+			close();
+			throw new WebException("Artisan command was cancelled.");
+		}
+	}
+	
+	/**
+	 * Executes the given code in the running worker.
+	 * @param code The code to execute.
+	 * @param timeout The maximum time the code is allowed to take.
+	 * @throws IOException When the worker crashed.
+	 * @throws WebException When the code failed or timed out.
+	 */
+	private void execute(String code, Duration timeout) throws IOException, WebException{
+		int id = nextId++;
+		JsonObject request = new JsonObject();
+		request.addProperty("id", id);
+		request.addProperty("code", code);
+		
+		Process worker = process;
+		ScheduledFuture<?> deadline = watchdog.schedule(()->kill(worker), timeout.toMillis(), TimeUnit.MILLISECONDS);
+		JobQueue.setCancelHook(()->kill(worker));
+		try{
+			input.write(request.toString());
+			input.newLine();
+			input.flush();
+			
+			String line;
+			while((line = output.readLine()) != null){
+				if(line.startsWith(RESULT)){
+					JsonObject result = JsonParser.parseString(line.substring(RESULT.length())).getAsJsonObject();
+					if(result.get("id").getAsInt() == id){
+						lastUsed = Instant.now();
+						if(!result.get("ok").getAsBoolean()){
+							throw new WebException("Artisan command failed: " + result.get("error").getAsString());
+						}
+						
+						return;
+					}
+				}else if(!line.isEmpty()){
+					sink.accept(line);
+				}
+			}
+		}finally{
+			JobQueue.setCancelHook(null);
+			deadline.cancel(false);
+		}
+		
+		if(deadline.isDone() && !deadline.isCancelled()){
+			close();
+			throw new WebException("Artisan command timed out after " + timeout.toSeconds() + " seconds.");
+		}
+		
+		throw new IOException("Artisan worker exited unexpectedly.");
+	}
+	
+	static{
+		try(InputStream in = ClassLoader.getSystemResourceAsStream("php/worker.php")){
+			SCRIPT = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+		}catch(IOException ignore){
+			IllegalStateException cause = new IllegalStateException("Failed to load artisan worker script.", ignore);
+			Main.client.logError(cause, "[ArtisanWorker] Failed to load artisan worker script", Severity.MAJOR, Priority.HIGH);
+			throw cause;
+		}
+	}
+}
@@ -97,4 +97,77 @@ public record Config(Configuration config, String domain){
 	public int getLoginServerPort(){
 		return config.readInt("login-port");
 	}
+	
+	/**
+	 * Gets the port the GitHub webhook server should run on.
+	 * @return The port for the webhook server.
+	 */
+	public int getWebhookPort(){
+		return config.readInt("webhook-port");
+	}
+	
+	/**
+	 * Gets the port the GitHub content server should run on.
+	 * @return The port for the content server.
+	 */
+	public int getContentServerPort(){
+		return config.readInt("content-port");
+	}
+	
+	/**
+	 * Gets the URL osu! web instances should use to reach the GitHub content server.
+	 * @return The base URL of the content server as seen from instances.
+	 */
+	public String getContentServerUrl(){
+		return config.readString("content-url");
+	}
+	
+	/**
+	 * Gets the base URL of the Elasticsearch cluster used by the instances.
+	 * @return The base URL of the Elasticsearch cluster.
+	 */
+	public String getElasticsearchUrl(){
+		return config.readString("es-url");
+	}
+	
+	/**
+	 * Gets the maximum number of instances to start at the same time when the application starts.
+	 * Values less than 1 are treated as 1, as no instance would ever start otherwise.
+	 * @return The maximum number of concurrently starting instances, at least 1.
+	 */
+	public int getStartupParallelism(){
+		return Math.max(1, config.readInt("startup-parallelism"));
+	}
+	
+	/**
+	 * Gets the maximum number of contributor remotes to keep configured in the wiki repository.
+	 * @return The maximum number of contributor remotes.
+	 */
+	public int getRemotePoolSize(){
+		return config.readInt("remote-pool-size");
+	}
+	
+	/**
+	 * Gets the maximum number of jobs that can wait in the job queue of an instance.
+	 * @return The maximum number of waiting jobs per instance.
+	 */
+	public int getJobQueueSize(){
+		return config.readInt("job-queue-size");
+	}
+	
+	/**
+	 * Gets the maximum number of pull requests to keep prefetched in the wiki repository.
+	 * @return The maximum number of prefetched pull requests.
+	 */
+	public int getPrefetchSize(){
+		return config.readInt("prefetch-size");
+	}
+	
+	/**
+	 * Gets the secret used to validate GitHub webhook payloads.
+	 * @return The GitHub webhook secret.
+	 */
+	public String getWebhookSecret(){
+		return config.readString("webhook-secret");
+	}
 }
@@ -20,31 +20,84 @@
 package dev.roanh.wiki;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.PrintWriter;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.SequencedCollection;
 import java.util.SortedMap;
 import java.util.TreeMap;
+import java.util.concurrent.Semaphore;
 import java.util.regex.Pattern;
 
+import io.prometheus.metrics.core.datapoints.Timer;
+import io.prometheus.metrics.core.metrics.Counter;
+import io.prometheus.metrics.core.metrics.Gauge;
+import io.prometheus.metrics.core.metrics.Summary;
+
 import dev.roanh.infinity.config.Configuration;
 import dev.roanh.infinity.config.PropertiesFileConfiguration;
 import dev.roanh.infinity.db.concurrent.DBException;
+import dev.roanh.isla.reporting.Priority;
+import dev.roanh.isla.reporting.Severity;
 import dev.roanh.wiki.data.Instance;
+import dev.roanh.wiki.data.WebState;
+import dev.roanh.wiki.docker.DockerClient;
+import dev.roanh.wiki.exception.DockerException;
+import dev.roanh.wiki.exception.DockerNotFoundException;
+import dev.roanh.wiki.exception.DockerTimeoutException;
 import dev.roanh.wiki.exception.WebException;
+import dev.roanh.wiki.github.ContentServer;
 
 /**
  * General instance manager for administrative tasks.
  * @author Roan
  */
 public class InstanceManager{
+	/**
+	 * Summary of the time taken by one-off instance commands by command type.
+	 */
+	private static final Summary commandTime = Summary.builder().name("wikipreview_instance_command_time").help("Time taken by one-off instance commands.").labelNames("command").quantile(0.5D).quantile(0.9D).register();
+	/**
+	 * Counter for the results of one-off instance commands by command type and exit code.
+	 */
+	private static final Counter commandResults = Counter.builder().name("wikipreview_instance_command_results").help("Number of one-off instance commands by result.").labelNames("command", "result").register();
+	/**
+	 * Gauge indicating whether each instance started successfully when the application started.
+	 */
+	private static final Gauge started = Gauge.builder().name("wikipreview_instance_started").help("Whether the instance started successfully when the application started.").labelNames("instance").register();
 	/**
 	 * Format for osu! web docker image release tags.
 	 */
 	private static final Pattern RELEASE_TAG_REGEX = Pattern.compile("\\d{4}\\.\\d+\\.\\d+");
+	/**
+	 * The osu! web docker image.
+	 */
+	private static final String IMAGE = "pppy/osu-web";
+	/**
+	 * Path of the GitHub connection configuration inside osu! web containers.
+	 */
+	private static final String GITHUB_CONFIG = "/app/config/github.php";
+	/**
+	 * Whether the GitHub connection configuration was written to the deploy directory.
+	 */
+	private static boolean githubConfigWritten = false;
+	/**
+	 * Maximum time a one-off artisan command (migrations, indexing) is allowed to take.
+	 */
+	private static final Duration ARTISAN_TIMEOUT = Duration.ofHours(2L);
+	/**
+	 * Maximum time pulling a new osu! web image is allowed to take.
+	 */
+	private static final Duration PULL_TIMEOUT = Duration.ofMinutes(30L);
 	/**
 	 * Deployment instances by Discord channel.
 	 */
@@ -87,16 +140,22 @@ public class InstanceManager{
 	 * @throws WebException When a docker exception occurs.
 	 */
 	public void deleteInstanceContainer() throws WebException{
-		Main.runCommand("docker stop " + instance.getWebContainer());
-		Main.runCommand("docker rm " + instance.getWebContainer());
+		try{
+			Main.docker.stopContainer(instance.getWebContainer());
+			Main.docker.removeContainer(instance.getWebContainer());
+		}catch(DockerNotFoundException ignore){
+			//there is no container to delete
+		}
 	}
 	
 	/**
-	 * Runs a new docker container for the instance.
-	 * @throws WebException When a docker exception occurs.
+	 * Runs a new docker container for the instance and waits for it to serve requests.
+	 * @throws WebException When a docker exception occurs or the instance did not become ready in time.
 	 */
 	public void runInstance() throws WebException{
-		Main.runCommand("docker run -d --name " + instance.getWebContainer() + " --env-file " + instance.getEnvFile() + " -p " + instance.getPort() + ":8000 pppy/osu-web:" + instance.getTag() + " octane");
+		Instant started = Instant.now();
+		Main.docker.runContainer(instance.getWebContainer(), IMAGE + ":" + instance.getTag(), readEnv(), instance.getPort(), getBinds(), List.of("octane"));
+		ReadinessProbe.awaitStart(instance, started);
 	}
 	
 	/**
@@ -126,6 +185,15 @@ public class InstanceManager{
 		migrateInstance();
 	}
 	
+	/**
+	 * Rebuilds the entire wiki search index of this instance.
+	 * @throws WebException When a docker exception occurs.
+	 * @see SearchIndex#reindex(InstanceManager)
+	 */
+	public void reindexWiki() throws WebException{
+		runArtisan("es:index-wiki");
+	}
+	
 	/**
 	 * Runs migrations for this instance.
 	 * @throws WebException When a docker exception occurs.
@@ -141,7 +209,7 @@ public class InstanceManager{
 	 */
 	public void generateEnv() throws IOException{
 		Configuration config = new PropertiesFileConfiguration(Paths.get("secrets.properties"));
-		try(PrintWriter out = new PrintWriter(Files.newBufferedWriter(Main.DEPLOY_PATH.toPath().resolve(instance.getEnvFile())))){
+		try(PrintWriter out = new PrintWriter(Files.newBufferedWriter(getEnvPath()))){
 			out.println("# osu! web instance " + instance.getId());
 			out.println("APP_URL=" + instance.getSiteUrl());
 			out.println("APP_ENV=production");
@@ -177,6 +245,8 @@ public class InstanceManager{
 			out.println("WIKI_BRANCH=" + instance.getGitHubBranch());
 			out.println("WIKI_REPOSITORY=osu-wiki");
 			out.println("WIKI_USER=RoanH");
+			//not read by osu! web itself, only by the mounted GitHub connection configuration
+			out.println("GITHUB_API_URL=" + Main.config.getContentServerUrl());
 			out.println();
 			out.println("# Elasticsearch");
 			out.println("ES_HOST=" + config.readString("ES_HOST") + ":9200");
@@ -221,7 +291,67 @@ public class InstanceManager{
 	 * @throws WebException When a docker exception occurs.
 	 */
 	private void runArtisan(String cmd) throws WebException{
-		Main.runCommand("docker run --rm -t --env-file " + instance.getEnvFile() + " pppy/osu-web:" + instance.getTag() + " artisan " + cmd + " --no-interaction");
+		List<String> args = new ArrayList<String>();
+		args.add("artisan");
+		args.addAll(List.of(cmd.split(" ")));
+		args.add("--no-interaction");
+		
+		String type = args.get(1);
+		int code;
+		try(Timer _ = commandTime.labelValues(type).startTimer()){
+			code = Main.docker.runToCompletion(IMAGE + ":" + instance.getTag(), readEnv(), getBinds(), args, JobQueue.output(), ARTISAN_TIMEOUT);
+		}catch(DockerException e){
+			recordFailure(type, e);
+			throw e;
+		}
+		
+		commandResults.labelValues(type, String.valueOf(code)).inc();
+		if(code != 0){
+			throw new WebException("Artisan command '" + cmd + "' returned exit code: " + code);
+		}
+	}
+	
+	/**
+	 * Reads the environment configuration for this instance.
+	 * @return The environment variables for the instance containers.
+	 * @throws WebException When the environment configuration could not be read.
+	 */
+	private List<String> readEnv() throws WebException{
+		try{
+			return DockerClient.readEnvFile(getEnvPath());
+		}catch(IOException e){
+			throw new WebException(e);
+		}
+	}
+	
+	/**
+	 * Gets the bind mounts for the instance containers. The stock GitHub connection
+	 * configuration of osu! web cannot be changed from the environment, so it is
+	 * replaced with one that reads the API host from <code>GITHUB_API_URL</code>.
+	 * @return The bind mounts for the instance containers.
+	 * @throws WebException When the GitHub connection configuration could not be written.
+	 * @see ContentServer
+	 */
+	private static synchronized List<String> getBinds() throws WebException{
+		Path config = Main.DEPLOY_PATH.toPath().resolve("github.php");
+		if(!githubConfigWritten){
+			try(InputStream in = ClassLoader.getSystemResourceAsStream("php/github.php")){
+				Files.copy(in, config, StandardCopyOption.REPLACE_EXISTING);
+				githubConfigWritten = true;
+			}catch(IOException e){
+				throw new WebException(e);
+			}
+		}
+		
+		return List.of(config + ":" + GITHUB_CONFIG + ":ro");
+	}
+	
+	/**
+	 * Gets the path to the environment configuration file for this instance.
+	 * @return The path to the environment configuration file.
+	 */
+	private Path getEnvPath(){
+		return Main.DEPLOY_PATH.toPath().resolve(instance.getEnvFile());
 	}
 	
 	/**
@@ -235,7 +365,28 @@ public class InstanceManager{
 			throw new WebException("The given docker image tag '" + tag + "' does not look like a valid release tag.");
 		}
 		
-		Main.runCommand("docker pull pppy/osu-web:" + tag);
+		try(Timer _ = commandTime.labelValues("pull").startTimer()){
+			Main.docker.pullImage(IMAGE, tag, JobQueue.output(), PULL_TIMEOUT);
+			commandResults.labelValues("pull", "0").inc();
+		}catch(DockerException e){
+			recordFailure("pull", e);
+			throw e;
+		}
+	}
+	
+	/**
+	 * Records a one-off instance command that failed before it could report an exit code.
+	 * @param type The command type.
+	 * @param e The exception that caused the failure.
+	 */
+	private static void recordFailure(String type, DockerException e){
+		if(e instanceof DockerTimeoutException){
+			commandResults.labelValues(type, "timeout").inc();
+		}else if(JobQueue.isCancelled()){
+			commandResults.labelValues(type, "cancelled").inc();
+		}else{
+			commandResults.labelValues(type, "error").inc();
+		}
 	}
 	
 	/**
@@ -249,6 +400,49 @@ public class InstanceManager{
 		}
 	}
 	
+	/**
+	 * Starts all registered instances in the background. Each instance is started by a job
+	 * in its own job queue, so commands for an instance wait until it is ready while other
+	 * instances are already available. At most the given number of instances start at the same time.
+	 * @param parallelism The maximum number of instances to start at the same time.
+	 * @throws DBException When a database exception occurs.
+	 */
+	public static void startInstances(int parallelism) throws DBException{
+		Map<Integer, WebState> states = MainDatabase.getStates();
+		Semaphore permits = new Semaphore(parallelism);
+		for(OsuWeb web : getInstances()){
+			WebState state = states.get(web.getInstance().getId());
+			web.getJobQueue().submit("start", ()->startInstance(web, state, permits), ()->{});
+		}
+	}
+	
+	/**
+	 * Starts a single instance once a startup permit is available.
+	 * @param web The instance to start.
+	 * @param state The last known state of the instance, null if not known.
+	 * @param permits The permits limiting the number of instances starting at the same time.
+	 */
+	private static void startInstance(OsuWeb web, WebState state, Semaphore permits){
+		String label = String.valueOf(web.getInstance().getId());
+		try{
+			permits.acquire();
+		}catch(InterruptedException ignore){
+			//startup was cancelled
+			return;
+		}
+		
+		try{
+			web.start(state);
+			started.labelValues(label).set(1);
+			JobQueue.output().accept("Instance " + label + " is ready.");
+		}catch(WebException e){
+			started.labelValues(label).set(0);
+			Main.client.logError(e, "[InstanceManager] Failed to start site with ID " + label, Severity.MINOR, Priority.MEDIUM);
+		}finally{
+			permits.release();
+		}
+	}
+	
 	/**
 	 * Gets an instance by the Discord channel that is used to manage it.
 	 * @param channel The ID of the discord channel for this instance.
@@ -0,0 +1,467 @@
+/*
+ * osu! wiki preview site
+ * Copyright (C) 2023  Roan Hofland (roan@roanh.dev) and contributors.
+ * GitHub Repository: https://github.com/RoanH/osuWikiPreview
+ * GitLab Repository: https://git.roanh.dev/roan/osuwikipreview
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package dev.roanh.wiki;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.prometheus.metrics.core.metrics.Counter;
+import io.prometheus.metrics.core.metrics.Gauge;
+import io.prometheus.metrics.core.metrics.Histogram;
+
+/**
+ * Bounded first in first out queue of jobs for a single osu! web instance.
+ * Jobs are run one at a time in the order they were submitted. Jobs that
+ * are still waiting can be cancelled, running jobs are cancelled by interrupting
+ * them, which aborts any Docker request they are blocked on. The output of
+ * each job is retained in a bounded buffer so it can be inspected.
+ * @author Roan
+ */
+public class JobQueue{
+	/**
+	 * Logger used for output produced outside of any job.
+	 */
+	private static final Logger logger = LoggerFactory.getLogger(JobQueue.class);
+	/**
+	 * Gauge with the number of waiting jobs by instance.
+	 */
+	private static final Gauge queueDepth = Gauge.builder().name("wikipreview_job_queue_depth").help("Number of jobs waiting in the job queue.").labelNames("instance").register();
+	/**
+	 * Histogram of the time jobs spent waiting in the queue by instance.
+	 */
+	private static final Histogram waitTime = Histogram.builder().name("wikipreview_job_queue_wait_time").help("Time jobs spent waiting in the job queue.").labelNames("instance").register();
+	/**
+	 * Counter for the number of jobs rejected because the queue was full by instance.
+	 */
+	private static final Counter rejected = Counter.builder().name("wikipreview_job_queue_rejected").help("Number of jobs rejected because the job queue was full.").labelNames("instance").register();
+	/**
+	 * Counter for the number of cancelled jobs by instance.
+	 */
+	private static final Counter cancelled = Counter.builder().name("wikipreview_job_queue_cancelled").help("Number of jobs cancelled while waiting in the job queue.").labelNames("instance").register();
+	/**
+	 * Counter for the number of jobs cancelled while running by instance.
+	 */
+	private static final Counter interrupted = Counter.builder().name("wikipreview_job_queue_interrupted").help("Number of jobs cancelled while running.").labelNames("instance").register();
+	/**
+	 * The maximum number of output lines retained for each job.
+	 */
+	private static final int OUTPUT_LINES = 200;
+	/**
+	 * The job running on the current thread, if any.
+	 */
+	private static final ThreadLocal<Job> current = new ThreadLocal<Job>();
+	/**
+	 * Estimated run time of jobs that never ran before.
+	 */
+	private static final Duration DEFAULT_ESTIMATE = Duration.ofSeconds(30L);
+	/**
+	 * Weight of the most recent run time in the run time estimate of a job.
+	 */
+	private static final double ESTIMATE_WEIGHT = 0.3D;
+	/**
+	 * Estimated run times of jobs by job name, shared between all instances.
+	 */
+	private static final Map<String, Duration> estimates = new ConcurrentHashMap<String, Duration>();
+	/**
+	 * The ID of the instance this queue is for.
+	 */
+	private final String instance;
+	/**
+	 * The maximum number of waiting jobs.
+	 */
+	private final int capacity;
+	/**
+	 * Jobs waiting to be run in submission order.
+	 */
+	private final Deque<Job> queue = new ArrayDeque<Job>();
+	/**
+	 * Executor that runs the jobs.
+	 */
+	private final ExecutorService executor = Executors.newSingleThreadExecutor();
+	/**
+	 * The job that is currently running, null if no job is running.
+	 */
+	private Job running = null;
+	/**
+	 * The job that most recently finished running, null if no job ran yet.
+	 */
+	private Job last = null;
+	/**
+	 * The ID for the next submitted job.
+	 */
+	private int nextId = 1;
+	
+	/**
+	 * Constructs a new job queue.
+	 * @param instance The ID of the instance this queue is for.
+	 * @param capacity The maximum number of waiting jobs.
+	 */
+	public JobQueue(int instance, int capacity){
+		this.instance = String.valueOf(instance);
+		this.capacity = capacity;
+		queueDepth.labelValues(this.instance).set(0);
+	}
+	
+	/**
+	 * Submits a new job to this queue.
+	 * @param name The name of the job, used for run time estimates.
+	 * @param task The task to run.
+	 * @param cancelHandler Invoked when the job is cancelled before it ran.
+	 * @return The submitted job or an empty optional if the queue is full.
+	 */
+	public synchronized Optional<Job> submit(String name, Runnable task, Runnable cancelHandler){
+		if(queue.size() >= capacity){
+			rejected.labelValues(instance).inc();
+			return Optional.empty();
+		}
+		
+		Job job = new Job(nextId++, name, task, cancelHandler);
+		queue.add(job);
+		queueDepth.labelValues(instance).set(queue.size());
+		executor.execute(this::runNext);
+		return Optional.of(job);
+	}
+	
+	/**
+	 * Cancels the waiting or running job with the given ID. A running job
+	 * is interrupted and is responsible for reporting its own cancellation.
+	 * The cancel hook of a running job is run at most once, outside the lock
+	 * of this queue as it may block.
+	 * @param id The ID of the job to cancel.
+	 * @return True if the job was cancelled, false if no waiting or running job with the given ID exists.
+	 */
+	public boolean cancel(int id){
+		Job job = null;
+		Runnable hook = null;
+		synchronized(this){
+			if(running != null && running.id == id){
+				//interrupting under the lock guarantees the thread is still running this job
+				hook = running.markCancelled();
+				running.thread.interrupt();
+				interrupted.labelValues(instance).inc();
+			}else{
+				Iterator<Job> iter = queue.iterator();
+				while(iter.hasNext()){
+					Job next = iter.next();
+					if(next.id == id){
+						iter.remove();
+						job = next;
+						break;
+					}
+				}
+				
+				if(job == null){
+					return false;
+				}
+				
+				queueDepth.labelValues(instance).set(queue.size());
+			}
+		}
+		
+		if(job == null){
+			if(hook != null){
+				hook.run();
+			}
+		}else{
+			cancelled.labelValues(instance).inc();
+			job.cancelHandler.run();
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Gets the position of the given job in the queue.
+	 * @param job The job to get the position of.
+	 * @return The position of the job, 1 for the next job to run or 0
+	 *         if the job is no longer waiting.
+	 */
+	public synchronized int getPosition(Job job){
+		int position = 1;
+		for(Job next : queue){
+			if(next == job){
+				return position;
+			}
+			
+			position++;
+		}
+		
+		return 0;
+	}
+	
+	/**
+	 * Estimates how long it takes before the given job starts running
+	 * based on the run times of earlier jobs with the same names.
+	 * @param job The waiting job to estimate the wait for.
+	 * @return The estimated wait time, zero if the job is no longer waiting.
+	 */
+	public synchronized Duration getEstimatedWait(Job job){
+		if(!queue.contains(job)){
+			return Duration.ZERO;
+		}
+		
+		Duration wait = Duration.ZERO;
+		if(running != null){
+			Duration remaining = getEstimate(running.name).minus(Duration.between(running.started, Instant.now()));
+			wait = remaining.isNegative() ? Duration.ZERO : remaining;
+		}
+		
+		for(Job next : queue){
+			if(next == job){
+				break;
+			}
+			
+			wait = wait.plus(getEstimate(next.name));
+		}
+		
+		return wait;
+	}
+	
+	/**
+	 * Gets the job that is currently running.
+	 * @return The running job if any.
+	 */
+	public synchronized Optional<Job> getRunningJob(){
+		return Optional.ofNullable(running);
+	}
+	
+	/**
+	 * Gets the job that most recently finished running.
+	 * @return The last finished job if any.
+	 */
+	public synchronized Optional<Job> getLastJob(){
+		return Optional.ofNullable(last);
+	}
+	
+	/**
+	 * Gets all jobs waiting in this queue in the order they will run.
+	 * @return All waiting jobs.
+	 */
+	public synchronized List<Job> getWaitingJobs(){
+		return new ArrayList<Job>(queue);
+	}
+	
+	/**
+	 * Runs the next job in the queue if any.
+	 */
+	private void runNext(){
+		Job job;
+		synchronized(this){
+			job = queue.poll();
+			if(job == null){
+				//the job was cancelled
+				return;
+			}
+			
+			running = job;
+			job.thread = Thread.currentThread();
+			job.started = Instant.now();
+			queueDepth.labelValues(instance).set(queue.size());
+		}
+		
+		waitTime.labelValues(instance).observe(Duration.between(job.submitted, job.started).toMillis() / 1000.0D);
+		current.set(job);
+		try{
+			job.task.run();
+		}finally{
+			current.remove();
+			Duration time = Duration.between(job.started, Instant.now());
+			estimates.merge(job.name, time, (old, recent)->Duration.ofMillis((long)(old.toMillis() * (1.0D - ESTIMATE_WEIGHT) + recent.toMillis() * ESTIMATE_WEIGHT)));
+			synchronized(this){
+				running = null;
+				last = job;
+			}
+			
+			//clear a cancellation that arrived after the job stopped checking for it
+			Thread.interrupted();
+		}
+	}
+	
+	/**
+	 * Gets the output receiver for the job running on the current thread.
+	 * When not called from a job, output is logged instead.
+	 * @return The output receiver for the current job.
+	 */
+	public static Consumer<String> output(){
+		Job job = current.get();
+		return job == null ? logger::info : job.output;
+	}
+	
+	/**
+	 * Checks if the job running on the current thread was cancelled.
+	 * @return True if the current job was cancelled while running.
+	 */
+	public static boolean isCancelled(){
+		Job job = current.get();
+		return job != null && job.cancelled;
+	}
+	
+	/**
+	 * Sets the action to run when the job running on the current thread is cancelled.
+	 * This is required for jobs blocked on operations that ignore interrupts, such as
+	 * reading the output of a process. If the job was already cancelled the action
+	 * is run immediately instead. When not called from a job, this method has no effect.
+	 * @param hook The action to run on cancellation, or null to clear the action.
+	 */
+	public static void setCancelHook(Runnable hook){
+		Job job = current.get();
+		if(job != null){
+			synchronized(job){
+				if(!job.cancelled){
+					job.cancelHook = hook;
+					return;
+				}
+			}
+			
+			if(hook != null){
+				hook.run();
+			}
+		}
+	}
+	
+	/**
+	 * Gets the estimated run time of jobs with the given name.
+	 * @param name The name of the job.
+	 * @return The estimated run time.
+	 */
+	private static Duration getEstimate(String name){
+		return estimates.getOrDefault(name, DEFAULT_ESTIMATE);
+	}
+	
+	/**
+	 * A single job submitted to a job queue.
+	 * @author Roan
+	 */
+	public static final class Job{
+		/**
+		 * The ID of this job, unique within its queue.
+		 */
+		private final int id;
+		/**
+		 * The name of this job.
+		 */
+		private final String name;
+		/**
+		 * The task to run for this job.
+		 */
+		private final Runnable task;
+		/**
+		 * Invoked when the job is cancelled before it ran.
+		 */
+		private final Runnable cancelHandler;
+		/**
+		 * The instant this job was submitted.
+		 */
+		private final Instant submitted = Instant.now();
+		/**
+		 * The instant this job started running, null if it did not start yet.
+		 */
+		private Instant started = null;
+		/**
+		 * The thread running this job, null if it did not start yet.
+		 */
+		private Thread thread = null;
+		/**
+		 * True if this job was cancelled while running.
+		 */
+		private volatile boolean cancelled = false;
+		/**
+		 * Action to run when this job is cancelled while running, null if there is none.
+		 * Guarded by the monitor of this job together with the cancelled flag.
+		 */
+		private Runnable cancelHook = null;
+		/**
+		 * The most recent output of this job.
+		 */
+		private final OutputBuffer output = new OutputBuffer(OUTPUT_LINES);
+		
+		/**
+		 * Constructs a new job.
+		 * @param id The ID of the job.
+		 * @param name The name of the job.
+		 * @param task The task to run.
+		 * @param cancelHandler Invoked when the job is cancelled before it ran.
+		 */
+		private Job(int id, String name, Runnable task, Runnable cancelHandler){
+			this.id = id;
+			this.name = name;
+			this.task = task;
+			this.cancelHandler = cancelHandler;
+		}
+		
+		/**
+		 * Gets the ID of this job.
+		 * @return The ID of this job.
+		 */
+		public int getId(){
+			return id;
+		}
+		
+		/**
+		 * Gets the name of this job.
+		 * @return The name of this job.
+		 */
+		public String getName(){
+			return name;
+		}
+		
+		/**
+		 * Gets the instant this job was submitted.
+		 * @return The instant this job was submitted.
+		 */
+		public Instant getSubmittedAt(){
+			return submitted;
+		}
+		
+		/**
+		 * Gets the most recent output of this job.
+		 * @return The output buffer of this job.
+		 */
+		public OutputBuffer getOutput(){
+			return output;
+		}
+		
+		/**
+		 * Marks this running job as cancelled and takes its cancel hook,
+		 * so the hook is run at most once.
+		 * @return The cancel hook to run or null if there is none.
+		 */
+		private synchronized Runnable markCancelled(){
+			cancelled = true;
+			Runnable hook = cancelHook;
+			cancelHook = null;
+			return hook;
+		}
+	}
+}
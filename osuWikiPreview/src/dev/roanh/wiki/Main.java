@@ -21,11 +21,14 @@ package dev.roanh.wiki;
 
 import java.io.File;
 import java.io.IOException;
+import java.time.Duration;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 
 import net.dv8tion.jda.api.requests.GatewayIntent;
 
+import org.eclipse.jgit.api.errors.GitAPIException;
+
 import dev.roanh.infinity.db.concurrent.DBException;
 import dev.roanh.isla.DiscordBot;
 import dev.roanh.isla.command.CommandScope;
@@ -42,14 +45,17 @@ import dev.roanh.wiki.cmd.InstanceCommand;
 import dev.roanh.wiki.cmd.MergeMasterCommand;
 import dev.roanh.wiki.cmd.NewsPreviewCommand;
 import dev.roanh.wiki.cmd.PrivateModeCommand;
+import dev.roanh.wiki.cmd.QueueCommand;
 import dev.roanh.wiki.cmd.RedateCommand;
 import dev.roanh.wiki.cmd.RefreshCommand;
 import dev.roanh.wiki.cmd.SwitchCommand;
 import dev.roanh.wiki.cmd.SyncNewsCommand;
 import dev.roanh.wiki.data.GroupSet;
 import dev.roanh.wiki.data.User;
-import dev.roanh.wiki.exception.WebException;
+import dev.roanh.wiki.docker.DockerClient;
+import dev.roanh.wiki.github.ContentServer;
 import dev.roanh.wiki.github.GitHub;
+import dev.roanh.wiki.github.WebhookHandler;
 
 /**
  * Main entry point of the application that starts the Discord bot.
@@ -84,6 +90,10 @@ public class Main{
 	 * The instance of the GitHub API.
 	 */
 	public static final GitHub githubAPI = new GitHub(Main.config.getGitHubToken());
+	/**
+	 * Client for the local Docker Engine running the osu! web instances.
+	 */
+	public static final DockerClient docker = new DockerClient(DockerClient.DEFAULT_SOCKET, Duration.ofMinutes(1L));
 	
 	/**
 	 * Starts the Discord bot.
@@ -91,8 +101,8 @@ public class Main{
 	 */
 	public static final void main(String[] args){
 		try{
-			OsuWiki.init();
-		}catch(IOException e){
+			OsuWiki.init(config);
+		}catch(IOException | GitAPIException e){
 			client.logError(e, "[Main] Failed to initialise osu! wiki system.", Severity.MINOR, Priority.MEDIUM);
 			return;
 		}
@@ -105,12 +115,11 @@ public class Main{
 			return;
 		}
 		
-		for(OsuWeb site : InstanceManager.getInstances()){
-			try{
-				site.start();
-			}catch(WebException | DBException e){
-				client.logError(e, "[Main] Failed to start site with ID " + site.getInstance().getId(), Severity.MINOR, Priority.MEDIUM);
-			}
+		try{
+			//instances start in the background so the bot and servers are available right away
+			InstanceManager.startInstances(config.getStartupParallelism());
+		}catch(DBException e){
+			client.logError(e, "[Main] Failed to start instances.", Severity.MINOR, Priority.MEDIUM);
 		}
 		
 		AuthServer authServer = new AuthServer(config.getAuthServerPort());
@@ -124,6 +133,28 @@ public class Main{
 			client.logError(e, "[Main] Failed to start login server", Severity.MAJOR, Priority.HIGH);
 		}
 		
+		WebhookHandler webhook = new WebhookHandler(config.getWebhookSecret(), config.getWebhookPort());
+		webhook.addPushHandler(data->{
+			if(data.isOfficialMaster()){
+				OsuWiki.requestMasterSync();
+			}
+		});
+		webhook.addPullRequestCreatedHandler(data->{
+			if(data.pullRequest().isOnOfficialRepository()){
+				OsuWiki.prefetchPullRequest(data.pullRequest());
+			}
+		});
+		webhook.addPullRequestCommitHandler(data->{
+			if(data.pullRequest().isOnOfficialRepository()){
+				OsuWiki.prefetchPullRequest(data.pullRequest());
+				PullRequestRefresher.handlePullRequestCommit(data);
+			}
+		});
+		webhook.start();
+		
+		ContentServer content = new ContentServer(config.getContentServerPort(), OsuWiki.getRepository(), OsuWiki::resolveInstanceBranch);
+		content.start();
+		
 		OsuAPI api = config.getOsuAPI();
 		
 		client.registerCommand(new SwitchCommand());
@@ -134,6 +165,7 @@ public class Main{
 		client.registerCommand(new NewsPreviewCommand());
 		client.registerCommand(new InstanceCommand());
 		client.registerCommand(new PrivateModeCommand(api));
+		client.registerCommand(new QueueCommand());
 		
 		client.addRequiredIntents(GatewayIntent.MESSAGE_CONTENT, GatewayIntent.GUILD_MEMBERS);
 		client.login();
@@ -154,23 +186,4 @@ public class Main{
 			}
 		}, 1, 1, TimeUnit.DAYS);
 	}
-	
-	/**
-	 * Runs a command on the server.
-	 * @param cmd The command to run.
-	 * @throws WebException When an exception occurs.
-	 */
-	public static void runCommand(String cmd) throws WebException{
-		try{
-			int code = new ProcessBuilder("bash", "-c", cmd).directory(Main.DEPLOY_PATH).inheritIO().start().waitFor();
-			if(0 != code){
-				throw new IOException("Executed command returned exit code: " + code);
-			}
-		}catch(InterruptedException ignore){
-			Thread.currentThread().interrupt();
-			throw new WebException(ignore);
-		}catch(IOException ignore){
-			throw new WebException(ignore);
-		}
-	}
 }
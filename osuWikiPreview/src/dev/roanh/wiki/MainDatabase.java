@@ -19,13 +19,18 @@
  */
 package dev.roanh.wiki;
 
+import java.time.Instant;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
 
 import dev.roanh.infinity.db.concurrent.DBException;
 import dev.roanh.infinity.db.concurrent.DBExecutorService;
 import dev.roanh.infinity.db.concurrent.DBExecutors;
 import dev.roanh.infinity.db.concurrent.Result;
 import dev.roanh.osuapi.user.UserExtended;
+import dev.roanh.wiki.SwitchTimings.Stage;
 import dev.roanh.wiki.data.GroupSet;
 import dev.roanh.wiki.data.Instance;
 import dev.roanh.wiki.data.PullRequest;
@@ -80,6 +85,47 @@ public final class MainDatabase{
 		return executor.selectFirst("SELECT * FROM state WHERE id = ?", WebState::new, id).orElse(null);
 	}
 	
+	/**
+	 * Retrieves the last known states of all web instances.
+	 * @return The last known states by web instance ID.
+	 * @throws DBException When a database exception occurs.
+	 */
+	public static Map<Integer, WebState> getStates() throws DBException{
+		Map<Integer, WebState> states = new HashMap<Integer, WebState>();
+		for(Entry<Integer, WebState> state : executor.selectAll("SELECT * FROM state", rs->Map.entry(rs.getInt("id"), new WebState(rs)))){
+			states.put(state.getKey(), state.getValue());
+		}
+		
+		return states;
+	}
+	
+	/**
+	 * Saves the stage timings of a completed switch for later analysis.
+	 * The schema of the table is in <code>Scripts/Database/switch_timings.sql</code>.
+	 * @param id The ID of the web instance that was switched.
+	 * @param timings The timings of the switch.
+	 * @throws DBException When a database exception occurs.
+	 */
+	public static void saveSwitchTimings(int id, SwitchTimings timings) throws DBException{
+		executor.insert(
+			"INSERT INTO switch_timings (instance, `time`, outcome, master, `fetch`, `merge`, `commit`, push, wiki, diff, news_clear, news_sync, news_links, statements) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)",
+			id,
+			Instant.now().getEpochSecond(),
+			timings.getOutcome().getName(),
+			timings.get(Stage.MASTER).toMillis(),
+			timings.get(Stage.FETCH).toMillis(),
+			timings.get(Stage.MERGE).toMillis(),
+			timings.get(Stage.COMMIT).toMillis(),
+			timings.get(Stage.PUSH).toMillis(),
+			timings.get(Stage.WIKI).toMillis(),
+			timings.get(Stage.DIFF).toMillis(),
+			timings.get(Stage.NEWS_CLEAR).toMillis(),
+			timings.get(Stage.NEWS_SYNC).toMillis(),
+			timings.get(Stage.NEWS_LINKS).toMillis(),
+			timings.getStatements()
+		);
+	}
+	
 	/**
 	 * Registers a new osu! web instance.
 	 * @param instance The new instance to register.
@@ -19,14 +19,24 @@
  */
 package dev.roanh.wiki;
 
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collections;
 import java.util.List;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import org.eclipse.jgit.diff.DiffEntry;
+import org.eclipse.jgit.diff.DiffEntry.ChangeType;
 
 import dev.roanh.infinity.db.concurrent.DBException;
 import dev.roanh.infinity.db.concurrent.DBExecutorService;
 import dev.roanh.infinity.db.concurrent.DBExecutors;
+import dev.roanh.isla.reporting.Priority;
+import dev.roanh.isla.reporting.Severity;
+import dev.roanh.wiki.OsuWiki.SwitchResult;
+import dev.roanh.wiki.SwitchTimings.Stage;
+import dev.roanh.wiki.SwitchTimings.StageTimer;
 import dev.roanh.wiki.data.AccessList;
 import dev.roanh.wiki.data.Instance;
 import dev.roanh.wiki.data.WebState;
@@ -37,6 +47,10 @@ import dev.roanh.wiki.exception.WebException;
  * @author Roan
  */
 public class OsuWeb{
+	/**
+	 * Maximum time to wait for a running instance to serve requests.
+	 */
+	private static final Duration READY_TIMEOUT = Duration.ofMinutes(1L);
 	/**
 	 * The instance this osu! web instance is associated with.
 	 */
@@ -46,9 +60,22 @@ public class OsuWeb{
 	 */
 	private final DBExecutorService executor;
 	/**
-	 * Lock to prevent simultaneous command runs.
+	 * Queue of jobs to run for this instance.
 	 */
-	private AtomicBoolean busy = new AtomicBoolean(false);
+	private final JobQueue jobs;
+	/**
+	 * Worker used to run artisan commands in the container of this instance.
+	 */
+	private final ArtisanWorker artisan;
+	/**
+	 * Worker used to run news artisan commands, separate so that news
+	 * updates can run concurrently with wiki updates.
+	 */
+	private final ArtisanWorker newsArtisan;
+	/**
+	 * The wiki search index of this instance.
+	 */
+	private final SearchIndex search;
 	/**
 	 * Current state for this web instance.
 	 */
@@ -62,6 +89,10 @@ public class OsuWeb{
 	public OsuWeb(Config config, Instance instance){
 		this.instance = instance;
 		executor = DBExecutors.newSingleThreadExecutor(config.getDatabaseContext(instance.getDatabaseSchemaPrefix()), "wiki" + instance.getId());
+		jobs = new JobQueue(instance.getId(), config.getJobQueueSize());
+		artisan = new ArtisanWorker(instance);
+		newsArtisan = new ArtisanWorker(instance);
+		search = new SearchIndex(config, instance);
 	}
 	
 	/**
@@ -96,22 +127,41 @@ public class OsuWeb{
 	}
 	
 	/**
-	 * Attempts to lock this instance for exclusive use.
-	 * @return True if instance was already locked and thus
-	 *         should not be used.
-	 * @see #unlock()
+	 * Forgets which commits were last deployed to this instance, so the next switch deploys
+	 * again even if nothing changed in the repository. Required after anything other than a
+	 * switch modified the content or container of the instance.
+	 * @see WebState#getDeployment
+	 */
+	public void clearDeployment(){
+		WebState state = currentState;
+		if(state != null){
+			state.setDeployment(null, null, null);
+		}
+	}
+	
+	/**
+	 * Gets the queue of jobs to run for this instance, all
+	 * commands that modify the instance are run through it.
+	 * @return The job queue for this instance.
 	 */
-	public boolean tryLock(){
-		return busy.getAndSet(true);
+	public JobQueue getJobQueue(){
+		return jobs;
 	}
 	
 	/**
-	 * Unlocks this instance for use by other threads, should
-	 * only be called after successfully locking this instance.
-	 * @see #tryLock()
+	 * Gets the wiki search index of this instance.
+	 * @return The search index for this instance.
 	 */
-	public void unlock(){
-		busy.set(false);
+	public SearchIndex getSearchIndex(){
+		return search;
+	}
+	
+	/**
+	 * Gets the worker used to run artisan commands for this instance.
+	 * @return The artisan worker for this instance.
+	 */
+	public ArtisanWorker getArtisanWorker(){
+		return artisan;
 	}
 	
 	/**
@@ -149,42 +199,127 @@ public class OsuWeb{
 	}
 	
 	/**
-	 * Updates all osu! web news articles.
+	 * Updates all osu! web news articles. This method does not throw, instead
+	 * the news stage that failed is recorded in the given switch timings and
+	 * later stages are skipped.
 	 * @param diff A diff indicating repository files that were changed.
-	 * @throws DBException When a database exception occurs.
-	 * @throws WebException When an exception occurs.
+	 * @param timings The record to add the time spent in each news stage to.
 	 */
-	public void runNewsUpdate(List<DiffEntry> diff) throws DBException, WebException{
-		for(DiffEntry file : diff){
-			clearNewsPost(file);
+	public void runNewsUpdate(List<DiffEntry> diff, SwitchTimings timings){
+		List<String> changed = getNewsSlugs(diff, false);
+		List<String> removed = getNewsSlugs(diff, true);
+		if(!changed.isEmpty() || !removed.isEmpty()){
+			try(StageTimer _ = timings.time(Stage.NEWS_CLEAR)){
+				clearNewsPosts(Stream.concat(changed.stream(), removed.stream()).toList());
+				timings.addStatement();
+			}catch(DBException e){
+				failNewsStage(timings, Stage.NEWS_CLEAR, e);
+				return;
+			}
 		}
-
-		syncAllNews();
 		
-		for(DiffEntry file : diff){
-			fixLinks(file);
+		if(!changed.isEmpty()){
+			try(StageTimer _ = timings.time(Stage.NEWS_SYNC)){
+				try{
+					syncNews(changed);
+				}catch(WebException e){
+					Main.client.logError(e, "[OsuWeb] Targeted news sync failed, falling back to a full sync", Severity.MINOR, Priority.LOW);
+					syncAllNews();
+				}
+			}catch(WebException e){
+				failNewsStage(timings, Stage.NEWS_SYNC, e);
+				return;
+			}
+			
+			//links can only be fixed once the news sync completed
+			try(StageTimer _ = timings.time(Stage.NEWS_LINKS)){
+				fixLinks(changed);
+				timings.addStatement();
+			}catch(DBException e){
+				failNewsStage(timings, Stage.NEWS_LINKS, e);
+			}
 		}
 	}
 	
+	/**
+	 * Logs and records the failure of a news update stage.
+	 * @param timings The switch timings to record the failure in.
+	 * @param stage The stage that failed.
+	 * @param cause The cause of the failure.
+	 */
+	private void failNewsStage(SwitchTimings timings, Stage stage, Exception cause){
+		Main.client.logError(cause, "[OsuWeb] News update failed in stage " + stage.getName(), Severity.MINOR, Priority.MEDIUM);
+		timings.fail(stage, cause);
+	}
+	
+	/**
+	 * Extracts the slugs of the news posts in the given diff.
+	 * @param diff A diff indicating repository files that were changed.
+	 * @param deleted True to extract the slugs of deleted news posts,
+	 *        false to extract the slugs of added or modified news posts.
+	 * @return The slugs of the matching news posts in the diff.
+	 */
+	private static List<String> getNewsSlugs(List<DiffEntry> diff, boolean deleted){
+		return diff.stream().filter(item->(item.getChangeType() == ChangeType.DELETE) == deleted).map(SwitchResult::getPath).filter(path->path.startsWith("news/")).map(path->{
+			return path.substring(path.lastIndexOf('/') + 1, path.length() - 3);
+		}).distinct().toList();
+	}
+	
+	/**
+	 * Quotes the given string as a PHP string literal.
+	 * @param str The string to quote.
+	 * @return The quoted PHP string literal.
+	 */
+	private static String quote(String str){
+		return "'" + str.replace("\\", "\\\\").replace("'", "\\'") + "'";
+	}
+	
+	/**
+	 * Creates a list of SQL parameter placeholders.
+	 * @param count The number of placeholders.
+	 * @return A comma separated list of the given number of placeholders.
+	 */
+	private static String placeholders(int count){
+		return String.join(", ", Collections.nCopies(count, "?"));
+	}
+	
+	/**
+	 * Syncs only the news posts with the given slugs.
+	 * @param slugs The slugs of the news posts to sync.
+	 * @throws WebException When an exception occurs.
+	 * @see #syncAllNews()
+	 */
+	public void syncNews(List<String> slugs) throws WebException{
+		newsArtisan.run(getNewsSyncCommand(slugs));
+	}
+	
+	/**
+	 * Builds the artisan worker command that syncs the news posts with the given slugs.
+	 * @param slugs The slugs of the news posts to sync.
+	 * @return The PHP code to run in the artisan worker.
+	 * @see ArtisanWorker
+	 */
+	static String getNewsSyncCommand(List<String> slugs){
+		String list = slugs.stream().map(OsuWeb::quote).collect(Collectors.joining(", "));
+		return "foreach([" + list + "] as $slug){\\App\\Models\\NewsPost::lookup($slug)->sync(true);}";
+	}
+	
 	/**
 	 * Sync's all news posts.
 	 * @throws WebException When an exception occurs.
 	 */
 	public void syncAllNews() throws WebException{
-		runArtisan("NewsPost::syncAll()");
+		newsArtisan.run("\\App\\Models\\NewsPost::syncAll()");
 	}
 	
 	/**
 	 * Fixes some links in news articles. Currently only updates the parent
-	 * for twitch embed links.
-	 * @param news The news post to update.
+	 * for twitch embed links. All posts are updated with a single statement.
+	 * @param slugs The slugs of the news posts to update, not empty.
 	 * @throws DBException When a database exception occurs.
 	 */
-	public void fixLinks(DiffEntry news) throws DBException{
-		String path = news.getNewPath();
-		if(path.startsWith("news/")){
-			executor.update("UPDATE news_posts SET page = REPLACE(page, \"parent=osu.ppy.sh\", \"parent=" + instance.getDomain() + "\") WHERE slug = ?", path.substring(path.lastIndexOf('/') + 1, path.length() - 3));
-		}
+	public void fixLinks(List<String> slugs) throws DBException{
+		executor.update("UPDATE news_posts SET page = REPLACE(page, \"parent=osu.ppy.sh\", \"parent=" + instance.getDomain() + "\") WHERE slug IN (" + placeholders(slugs.size()) + ")", slugs.toArray());
 	}
 	
 	/**
@@ -204,17 +339,69 @@ public class OsuWeb{
 	}
 	
 	/**
-	 * Clears all data for the given news post from the database.
-	 * @param news The news post to remove.
+	 * Clears all data for the given news posts from the database
+	 * using a single statement.
+	 * @param slugs The slugs of the news posts to remove, not empty.
 	 * @throws DBException When a database exception occurs.
 	 */
-	public void clearNewsPost(DiffEntry news) throws DBException{
-		String path = news.getNewPath();
-		if(path.startsWith("news/")){
-			executor.delete("DELETE FROM news_posts WHERE slug = ?", path.substring(path.lastIndexOf('/') + 1, path.length() - 3));
-		}
+	public void clearNewsPosts(List<String> slugs) throws DBException{
+		executor.delete("DELETE FROM news_posts WHERE slug IN (" + placeholders(slugs.size()) + ")", slugs.toArray());
 	}
 		
+	/**
+	 * Updates exactly the osu! web wiki pages in the given diff, pages that were
+	 * deleted are removed from the instance. Falls back to a full update of all
+	 * pages that differ between ppy/master and the sync branch of this instance
+	 * if the targeted update fails.
+	 * @param diff A diff indicating repository files that were changed.
+	 * @throws WebException When an exception occurs.
+	 * @see #runWikiUpdate(String, String)
+	 */
+	public void runWikiUpdate(List<DiffEntry> diff) throws WebException{
+		StringBuilder cmd = new StringBuilder();
+		int indexed = 0;
+		int deleted = 0;
+		for(DiffEntry entry : diff){
+			String path = SwitchResult.getPath(entry);
+			int split = path.lastIndexOf('/');
+			if(path.startsWith("wiki/") && split > 5){
+				if(entry.getChangeType() == ChangeType.DELETE){
+					deleted++;
+				}else{
+					indexed++;
+				}
+				
+
+				//syncing a page that no longer exists removes it from the instance
+				cmd.append("(new App\\Models\\Wiki\\Page(");
+				cmd.append(quote(path.substring(5, split)));
+				cmd.append(", ");
+				cmd.append(quote(path.substring(split + 1, path.length() - 3)));
+				cmd.append("))->sync(true);");
+			}
+		}
+		
+		if(cmd.isEmpty()){
+			return;
+		}
+		
+		long start = System.nanoTime();
+		try{
+			runArtisan(cmd.toString());
+		}catch(WebException e){
+			Main.client.logError(e, "[OsuWeb] Targeted wiki update failed, falling back to a full update", Severity.MINOR, Priority.LOW);
+			runWikiUpdate("master", getWikiSyncBranch());
+			return;
+		}
+		
+		try{
+			//syncing a page also (re)indexes it, make the changes searchable right away
+			search.recordUpdate(Duration.ofNanos(System.nanoTime() - start), indexed, deleted);
+		}catch(WebException e){
+			Main.client.logError(e, "[OsuWeb] Failed to refresh the wiki search index", Severity.MINOR, Priority.LOW);
+		}
+	}
+	
 	/**
 	 * Updates all osu! web wiki articles in the given ref range.
 	 * @param from The current wiki ref.
@@ -222,17 +409,37 @@ public class OsuWeb{
 	 * @throws WebException When an exception occurs.
 	 */
 	public void runWikiUpdate(String from, String to) throws WebException{
-		runArtisan("OsuWiki::updateFromGithub(['before' => '" + from + "','after' => '" + to + "'])");
+		runArtisan("\\App\\Libraries\\OsuWiki::updateFromGithub(['before' => '" + from + "','after' => '" + to + "'])");
 	}
 	
 	/**
-	 * Starts the osu! web instance.
+	 * Starts the osu! web instance and waits for it to serve requests.
 	 * @throws DBException When a database exception occurs.
-	 * @throws WebException When an exception occurs.
+	 * @throws WebException When an exception occurs or the instance did not become ready in time.
 	 */
 	public void start() throws DBException, WebException{
-		currentState = MainDatabase.getState(instance.getId());
-		Main.runCommand("docker start " + instance.getWebContainer());
+		start(MainDatabase.getState(instance.getId()));
+	}
+	
+	/**
+	 * Starts the osu! web instance with an already retrieved state and waits for it to serve requests.
+	 * @param state The last known state of the instance, null if not known.
+	 * @throws WebException When an exception occurs or the instance did not become ready in time.
+	 */
+	public void start(WebState state) throws WebException{
+		currentState = state;
+		Instant started = Instant.now();
+		Main.docker.startContainer(instance.getWebContainer());
+		ReadinessProbe.awaitStart(instance, started);
+	}
+	
+	/**
+	 * Waits for the osu! web instance to serve requests, returning
+	 * immediately if it already does.
+	 * @return True if the instance is ready, false if it did not become ready in time.
+	 */
+	public boolean awaitReady(){
+		return ReadinessProbe.await(instance, READY_TIMEOUT);
 	}
 	
 	/**
@@ -241,15 +448,18 @@ public class OsuWeb{
 	 * @throws WebException When an exception occurs.
 	 */
 	public void stop() throws DBException, WebException{
-		Main.runCommand("docker stop " + instance.getWebContainer());
+		artisan.close();
+		newsArtisan.close();
+		Main.docker.stopContainer(instance.getWebContainer());
 	}
 	
 	/**
 	 * Runs an osu! web artisan command.
 	 * @param cmd The command to run.
 	 * @throws WebException When an exception occurs.
+	 * @see ArtisanWorker
 	 */
 	public void runArtisan(String cmd) throws WebException{
-		Main.runCommand("docker exec -t " + instance.getWebContainer() + " php artisan tinker --execute=\"" + cmd + "\"");
+		artisan.run(cmd);
 	}
 }
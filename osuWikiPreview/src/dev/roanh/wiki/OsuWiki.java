@@ -20,46 +20,80 @@
 package dev.roanh.wiki;
 
 import java.io.IOException;
-import java.net.URISyntaxException;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import org.eclipse.jgit.api.Git;
-import org.eclipse.jgit.api.MergeCommand.FastForwardMode;
-import org.eclipse.jgit.api.ResetCommand.ResetType;
 import org.eclipse.jgit.api.TransportConfigCallback;
 import org.eclipse.jgit.api.errors.GitAPIException;
 import org.eclipse.jgit.api.errors.InvalidRemoteException;
+import org.eclipse.jgit.api.errors.JGitInternalException;
 import org.eclipse.jgit.api.errors.TransportException;
 import org.eclipse.jgit.diff.DiffEntry;
 import org.eclipse.jgit.diff.DiffEntry.ChangeType;
+import org.eclipse.jgit.dircache.DirCache;
+import org.eclipse.jgit.dircache.DirCacheEditor;
+import org.eclipse.jgit.dircache.DirCacheEditor.PathEdit;
+import org.eclipse.jgit.dircache.DirCacheEntry;
+import org.eclipse.jgit.errors.MissingObjectException;
+import org.eclipse.jgit.lib.CommitBuilder;
 import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
 import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
 import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.ProgressMonitor;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.RefUpdate;
 import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.merge.ContentMergeStrategy;
+import org.eclipse.jgit.merge.MergeStrategy;
+import org.eclipse.jgit.merge.ResolveMerger;
 import org.eclipse.jgit.revwalk.RevCommit;
 import org.eclipse.jgit.revwalk.RevWalk;
 import org.eclipse.jgit.revwalk.filter.RevFilter;
 import org.eclipse.jgit.transport.RefSpec;
-import org.eclipse.jgit.transport.RemoteConfig;
+import org.eclipse.jgit.transport.SshSessionFactory;
 import org.eclipse.jgit.transport.SshTransport;
-import org.eclipse.jgit.transport.URIish;
 import org.eclipse.jgit.transport.sshd.SshdSessionFactory;
 import org.eclipse.jgit.transport.sshd.SshdSessionFactoryBuilder;
 import org.eclipse.jgit.treewalk.CanonicalTreeParser;
 import org.slf4j.LoggerFactory;
 
 import io.prometheus.metrics.core.datapoints.Timer;
+import io.prometheus.metrics.core.metrics.Counter;
 import io.prometheus.metrics.core.metrics.Summary;
 
 import dev.roanh.infinity.db.concurrent.DBException;
+import dev.roanh.isla.reporting.Priority;
+import dev.roanh.isla.reporting.Severity;
+import dev.roanh.wiki.PrefetchCache.Prefetch;
+import dev.roanh.wiki.RemotePool.RemoteLease;
+import dev.roanh.wiki.RepositoryMaintenance.Lease;
+import dev.roanh.wiki.SwitchTimings.Outcome;
+import dev.roanh.wiki.SwitchTimings.Stage;
+import dev.roanh.wiki.SwitchTimings.StageTimer;
+import dev.roanh.wiki.data.WebState;
 import dev.roanh.wiki.exception.MergeConflictException;
 import dev.roanh.wiki.exception.WebException;
+import dev.roanh.wiki.github.obj.GitHubPullRequest;
+import dev.roanh.wiki.github.obj.GitHubRepository;
 
 import ch.qos.logback.classic.Level;
 import ch.qos.logback.classic.Logger;
@@ -77,22 +111,91 @@ public class OsuWiki{
 	 * Summary of the time it takes to update the osu! web instance after a switch.
 	 */
 	private static final Summary webSyncTime = Summary.builder().name("wikipreview_git_web_sync_time").help("Time spent syncing the web instance.").register();
+	/**
+	 * Summary of the time it takes to push changes to the upstream repository.
+	 */
+	private static final Summary pushTime = Summary.builder().name("wikipreview_git_push_time").help("Time spent pushing to the upstream repository.").register();
+	/**
+	 * Number of switches that were skipped because nothing changed since the last deploy.
+	 */
+	private static final Counter skippedSwitches = Counter.builder().name("wikipreview_git_switch_skipped").help("Number of switches skipped because nothing changed.").register();
 	/**
 	 * Summary of the time it takes to compute the repository diff after a switch.
 	 */
 	private static final Summary diffTime = Summary.builder().name("wikipreview_git_diff_time").help("Time spent computing repository diffs.").register();
+	/**
+	 * Counter for the number of objects received while fetching by fetch mode.
+	 */
+	private static final Counter fetchObjects = Counter.builder().name("wikipreview_git_fetch_objects").help("Number of objects received while fetching.").labelNames("mode").register();
+	/**
+	 * Counter for the number of pack bytes received while fetching by fetch mode.
+	 */
+	private static final Counter fetchBytes = Counter.builder().name("wikipreview_git_fetch_bytes").help("Number of pack bytes received while fetching.").labelNames("mode").register();
 	/**
 	 * Regex for commit hashes.
 	 */
 	private static final Pattern COMMIT_REGEX = Pattern.compile("[a-z0-9]{40}");
 	/**
-	 * Wiki repository bound git instance.
+	 * Interval at which the master branch is mirrored from ppy/master in the background.
+	 */
+	private static final Duration MASTER_SYNC_INTERVAL = Duration.ofMinutes(10L);
+	/**
+	 * Maximum age of the cached master commit before switches check it against ppy/master again.
+	 */
+	private static final Duration MASTER_MAX_AGE = Duration.ofMinutes(2L);
+	/**
+	 * Amount of time idle SSH connections to GitHub are kept alive.
+	 */
+	private static final Duration SSH_IDLE_TIMEOUT = Duration.ofMinutes(5L);
+	/**
+	 * Executor used to mirror the master branch in the background.
+	 */
+	private static final ScheduledExecutorService mirrorExecutor = Executors.newSingleThreadScheduledExecutor();
+	/**
+	 * Executor used to run the news update concurrently with the wiki update.
+	 */
+	private static final ExecutorService syncExecutor = Executors.newCachedThreadPool();
+	/**
+	 * Executor used to prefetch pull requests in the background.
+	 */
+	private static final ExecutorService prefetchExecutor = Executors.newSingleThreadExecutor();
+	/**
+	 * Refspec that mirrors the local copy of ppy/master to the upstream master branch.
+	 */
+	private static final RefSpec MASTER_SPEC = new RefSpec(Constants.R_REMOTES + "ppy/" + Constants.MASTER + ":" + Constants.R_HEADS + Constants.MASTER);
+	/**
+	 * Prefix of the local refs holding the commit previewed on each instance.
+	 */
+	private static final String PREVIEW_REFS = "refs/preview/";
+	/**
+	 * Identity used for commits created by the preview system.
+	 */
+	private static final PersonIdent IDENTITY = new PersonIdent("Roan Hofland", "roan@roanh.dev");
+	/**
+	 * Wiki repository bound git instance, this repository holds all remotes
+	 * and the preview commits for all instances.
 	 */
 	private static Git git;
 	/**
-	 * Cached list of remotes.
+	 * Lock used to coordinate updates to the master branch.
 	 */
-	private static Set<String> remotes = new CopyOnWriteArraySet<String>();
+	private static final Object masterLock = new Object();
+	/**
+	 * The last known state of the master branch, null if not yet known.
+	 */
+	private static volatile MasterState master = null;
+	/**
+	 * Pool of contributor remotes configured in the wiki repository.
+	 */
+	private static RemotePool remotes;
+	/**
+	 * Maintenance scheduler for the wiki repository.
+	 */
+	private static RepositoryMaintenance maintenance;
+	/**
+	 * Cache of pull requests fetched ahead of time.
+	 */
+	private static PrefetchCache prefetches;
 	/**
 	 * Cached list of recent refs.
 	 */
@@ -104,12 +207,81 @@ public class OsuWiki{
 	
 	/**
 	 * Constructs a new osu! wiki command.
+	 * @param config The application configuration.
 	 * @throws IOException When some IO exception occurs.
+	 * @throws GitAPIException When a git exception occurs.
 	 */
-	public static void init() throws IOException{
+	public static void init(Config config) throws IOException, GitAPIException{
 		((Logger)LoggerFactory.getLogger(org.slf4j.Logger.ROOT_LOGGER_NAME)).setLevel(Level.WARN);
 		git = Git.open(Main.WIKI_PATH);
 		git.getRepository().getConfig().setBoolean("commit", null, "gpgsign", false);
+		remotes = new RemotePool(git, config.getRemotePoolSize());
+		prefetches = new PrefetchCache(git.getRepository(), config.getPrefetchSize());
+		maintenance = new RepositoryMaintenance(git);
+		maintenance.start();
+		mirrorExecutor.scheduleWithFixedDelay(OsuWiki::mirrorMaster, 0L, MASTER_SYNC_INTERVAL.toMinutes(), TimeUnit.MINUTES);
+	}
+	
+	/**
+	 * Requests the master branch to be mirrored from ppy/master in the background
+	 * as soon as possible, for example because a push to ppy/master was observed.
+	 */
+	public static void requestMasterSync(){
+		mirrorExecutor.execute(OsuWiki::mirrorMaster);
+	}
+	
+	/**
+	 * Fetches the head of the given pull request on the official osu! wiki repository
+	 * in the background and precomputes its diff against ppy/master, so a later switch
+	 * to the pull request branch does not have to fetch anything. Errors are logged.
+	 * @param pr The pull request to prefetch.
+	 */
+	public static void prefetchPullRequest(GitHubPullRequest pr){
+		try{
+			prefetches.invalidate(pr.number());
+		}catch(IOException e){
+			Main.client.logError(e, "[OsuWiki] Failed to invalidate prefetched pull request #" + pr.number(), Severity.MINOR, Priority.LOW);
+		}
+		
+		GitHubRepository repo = pr.head().repo();
+		if(repo == null){
+			//the fork backing the pull request was deleted
+			return;
+		}
+		
+		prefetchExecutor.execute(()->{
+			try(Lease _ = maintenance.use()){
+				String ref = PrefetchCache.PREFETCH_REFS + pr.number();
+				fetch("ppy", new RefSpec("+refs/pull/" + pr.number() + "/head:" + ref), "prefetch");
+				
+				ObjectId head = git.getRepository().resolve(ref);
+				ObjectId from = getMaster();
+				prefetches.put(new Prefetch(pr.number(), repo.owner().login(), pr.head().ref(), head, from, computeDiff(from, head), Instant.now()));
+			}catch(GitAPIException | IOException e){
+				Main.client.logError(e, "[OsuWiki] Failed to prefetch pull request #" + pr.number(), Severity.MINOR, Priority.LOW);
+			}
+		});
+	}
+	
+	/**
+	 * Gets the shared wiki repository.
+	 * @return The wiki repository.
+	 */
+	public static Repository getRepository(){
+		return git.getRepository();
+	}
+	
+	/**
+	 * Resolves a branch as seen by osu! web instances to a commit in the wiki repository.
+	 * The master branch resolves to ppy/master and instance branches resolve to the
+	 * commit last previewed on that branch.
+	 * @param branch The name of the branch to resolve.
+	 * @return The resolved commit or null if the branch does not exist.
+	 * @throws IOException When an IOException occurs.
+	 */
+	public static ObjectId resolveInstanceBranch(String branch) throws IOException{
+		Ref ref = git.getRepository().exactRef(Constants.MASTER.equals(branch) ? (Constants.R_REMOTES + "ppy/" + Constants.MASTER) : (PREVIEW_REFS + branch));
+		return ref == null ? null : ref.getObjectId();
 	}
 	
 	/**
@@ -117,7 +289,7 @@ public class OsuWiki{
 	 * @return The recently used remotes.
 	 */
 	public static List<String> getRecentRemotes(){
-		return new ArrayList<String>(remotes);
+		return remotes.getRemotes();
 	}
 	
 	/**
@@ -140,26 +312,42 @@ public class OsuWiki{
 	 * @throws WebException When a web exception occurs.
 	 * @throws DBException When a database exception occurs.
 	 */
-	public synchronized static SwitchResult pushNews(byte[] data, int year, String filename, OsuWeb instance) throws GitAPIException, IOException, DBException, WebException{
-		//update master copy
-		ObjectId from = updateMaster();
-		
-		//write & commit file
-		String path = "news/" + year + "/" + filename;
-		Files.write(Main.WIKI_PATH.toPath().resolve(path), data);
-		
-		//commit file
-		commitNewsFile(path);
-		
-		return pushBranch(from, instance);
+	public static SwitchResult pushNews(byte[] data, int year, String filename, OsuWeb instance) throws GitAPIException, IOException, DBException, WebException{
+		int id = instance.getInstance().getId();
+		SwitchTimings timings = new SwitchTimings();
+		try(Lease _ = maintenance.use()){
+			synchronized(instance){
+				//start from the current master
+				ObjectId from;
+				try(StageTimer _ = timings.time(Stage.MASTER)){
+					from = getMaster();
+				}
+				
+				//commit the file on top of master
+				ObjectId to;
+				try(StageTimer _ = timings.time(Stage.COMMIT)){
+					to = commitNewsFile(from, "news/" + year + "/" + filename, data);
+				}
+				
+				SwitchResult result = pushBranch(from, to, instance, timings);
+				timings.complete(id, Outcome.SUCCESS);
+				return result;
+			}
+		}catch(Exception e){
+			timings.complete(id, Outcome.FAILURE);
+			throw e;
+		}
 	}
 	
 	/**
-	 * Switches the site to the given ref from the given namespace.
-	 * @param name The namespace for the ref (user / organisation).
-	 * @param repo The osu! wiki repository name.
-	 * @param ref The reference to switch to.
-	 * @param mergeMaster Whether to merge ppy/master into the ref before updating the site.
+	 * Switches the site to the given ref from the given namespace. Switches
+	 * only lock the given instance, switches for other instances can run
+	 * at the same time. No working tree is involved, the previewed commit
+	 * is built directly in the object database. If the instance already shows
+	 * the given state and neither the ref nor ppy/master changed since it was
+	 * deployed, the result of the previous deploy is returned without touching
+	 * the instance.
+	 * @param state The state to switch to, records the deployed commits on success.
 	 * @param instance The osu! web instance to update with the changes.
 	 * @return A record with change information about the switch.
 	 * @throws MergeConflictException If a merge with master is requested but a conflict occurs.
@@ -168,52 +356,121 @@ public class OsuWiki{
 	 * @throws WebException When a web exception occurs.
 	 * @throws DBException When a database exception occurs.
 	 */
-	public synchronized static SwitchResult switchBranch(String name, String repo, String ref, boolean mergeMaster, OsuWeb instance) throws MergeConflictException, GitAPIException, IOException, DBException, WebException{
-		try(Timer _ = switchTime.startTimer()){
+	public static SwitchResult switchBranch(WebState state, OsuWeb instance) throws MergeConflictException, GitAPIException, IOException, DBException, WebException{
+		int id = instance.getInstance().getId();
+		SwitchTimings timings = new SwitchTimings();
+		try(Timer _ = switchTime.startTimer(); Lease _ = maintenance.use()){
+			String name = state.getNamespace();
+			String ref = state.getRef();
 			refs.add(ref);
 			
-			//update master copy
-			ObjectId from = updateMaster();
+			synchronized(instance){
+				//current master state
+				ObjectId from;
+				try(StageTimer _ = timings.time(Stage.MASTER)){
+					from = getMaster();
+				}
 
-			//reset to the new branch
-			findRemote(name, repo);
-			forceFetch(name);
-			reset(name, ref);
-			
-			//merge changes from master if requested
-			if(mergeMaster){
-				mergeMaster(from);
+				//resolve the new branch
+				ObjectId head;
+				try(StageTimer _ = timings.time(Stage.FETCH); RemoteLease _ = remotes.acquire(name, state.getRepository())){
+					Optional<ObjectId> prefetched = prefetches.getHead(name, ref).filter(commit->isRemoteHead(name, ref, commit));
+					if(prefetched.isPresent()){
+						head = prefetched.get();
+					}else{
+						fetch(name, ref);
+						head = resolve(name, ref);
+					}
+				}
+				
+				//check if anything changed since the last deploy
+				WebState current = instance.getCurrentState();
+				if(current != null && current.hasSameTarget(state)){
+					Optional<SwitchResult> deployed = current.getDeployment(from, head);
+					if(deployed.isPresent()){
+						SwitchResult result = deployed.get().withTimings(timings);
+						skippedSwitches.inc();
+						timings.complete(id, Outcome.SKIPPED);
+						state.setDeployment(from, head, result);
+						return result;
+					}
+				}
+				
+				//merge changes from master if requested
+				ObjectId to = head;
+				if(state.hasMaster()){
+					try(StageTimer _ = timings.time(Stage.MERGE)){
+						to = mergeMaster(head, from);
+					}
+				}
+
+				SwitchResult result = pushBranch(from, to, instance, timings);
+				timings.complete(id, Outcome.SUCCESS);
+				if(timings.getOutcome() == Outcome.SUCCESS){
+					//partially deployed states should not be skipped on a refresh
+					state.setDeployment(from, head, result);
+				}
+				
+				return result;
 			}
-			
-			return pushBranch(from, instance);
+		}catch(Exception e){
+			timings.complete(id, Outcome.FAILURE);
+			throw e;
 		}
 	}
 	
 	/**
-	 * Pushing the currently checked out branch and computes a diff.
+	 * Points the preview ref of the given instance at the given commit, pushes it and computes a diff.
+	 * If the upstream master branch is behind ppy/master it is updated as part of the same push.
+	 * The files changed since the commit that was last deployed to the instance are included.
 	 * @param from The commit to use the compute a git diff of the changes.
+	 * @param to The commit to preview on the instance.
 	 * @param instance The osu! web instance that is being updated.
+	 * @param timings The record to add the time spent in each stage to.
 	 * @return The result of switching the active preview branch.
 	 * @throws IOException When an IOException occurs.
 	 * @throws GitAPIException When a git exception occurs.
 	 * @throws WebException When a web exception occurs.
 	 * @throws DBException When a database exception occurs.
 	 */
-	private static SwitchResult pushBranch(ObjectId from, OsuWeb instance) throws IOException, GitAPIException, DBException, WebException{
+	private static SwitchResult pushBranch(ObjectId from, ObjectId to, OsuWeb instance, SwitchTimings timings) throws IOException, GitAPIException, DBException, WebException{
 		//push the new state to the remote
-		forcePush(instance.getWikiSyncBranch());
+		try(StageTimer _ = timings.time(Stage.PUSH)){
+			String previewRef = PREVIEW_REFS + instance.getWikiSyncBranch();
+			updateRef(previewRef, to);
+			List<RefSpec> specs = new ArrayList<RefSpec>();
+			specs.add(new RefSpec(previewRef + ":" + Constants.R_HEADS + instance.getWikiSyncBranch()));
+			if(!isMasterMirrored()){
+				specs.add(MASTER_SPEC);
+			}
+			
+			forcePush(specs);
+		}
 
-		//update the website wiki
 		try(Timer _ = webSyncTime.startTimer()){
-			ObjectId to = getHead();
-			instance.runWikiUpdate("master", instance.getWikiSyncBranch());
-
 			//compute the diff
-			SwitchResult diff = new SwitchResult(computeDiff(from, to), to.getName());
-
-			//update the website news
-			if(diff.hasNews()){
-				instance.runNewsUpdate(diff.diff());
+			SwitchResult diff;
+			try(StageTimer _ = timings.time(Stage.DIFF)){
+				Optional<List<DiffEntry>> prefetched = prefetches.getDiff(from, to);
+				List<DiffEntry> files = prefetched.isPresent() ? prefetched.get() : computeDiff(from, to);
+				diff = new SwitchResult(files, computeChanges(instance, to, files), to.getName(), timings);
+			}
+			
+			//update the website news concurrently with the wiki
+			List<DiffEntry> changes = diff.diff();
+			CompletableFuture<Void> news = diff.hasNews() ? CompletableFuture.runAsync(()->instance.runNewsUpdate(changes, timings), syncExecutor) : null;
+			
+			//update the website wiki
+			try(StageTimer _ = timings.time(Stage.WIKI)){
+				instance.runWikiUpdate(changes);
+			}catch(WebException e){
+				Main.client.logError(e, "[OsuWiki] Wiki update failed", Severity.MINOR, Priority.MEDIUM);
+				timings.fail(Stage.WIKI, e);
+			}
+			
+			if(news != null){
+				//the news update records its own failures and never throws
+				news.join();
 			}
 
 			//return the diff
@@ -223,8 +480,8 @@ public class OsuWiki{
 	
 	/**
 	 * Builds an embed showing changed files between the given two refs. This function
-	 * is equivalent to {@code git diff --diff-filter=d --name-only A...B} and in addition
-	 * also only returns <code>.md</code> files.
+	 * is equivalent to {@code git diff --name-only A...B} and in addition also only
+	 * returns <code>.md</code> files. Deleted files are included as well.
 	 * @param from The old ref.
 	 * @param to The new ref.
 	 * @return A list of changed files.
@@ -243,146 +500,453 @@ public class OsuWiki{
 				rev.markStart(target);
 				rev.setRevFilter(RevFilter.MERGE_BASE);
 				
-				//merge base tree
-				CanonicalTreeParser oldTree = new CanonicalTreeParser();
-				oldTree.reset(reader, rev.next().getTree());
-				
-				//current head tree
-				CanonicalTreeParser newTree = new CanonicalTreeParser();
-				newTree.reset(reader, target.getTree());
-				
-				return git.diff().setOldTree(oldTree).setNewTree(newTree).setShowNameOnly(true).call().stream().filter(item->{
-					return item.getChangeType() != ChangeType.DELETE && item.getNewPath().endsWith(".md");
-				}).toList();
+				return diffTrees(reader, rev.next(), target);
 			}
 		}
 	}
 	
 	/**
-	 * Commits a new newspost to the current branch.
-	 * @param path The path of the newspost file to commit.
+	 * Computes the files changed on the given instance since the commit that was last deployed to it.
+	 * @param instance The instance that is being updated.
+	 * @param to The commit that is being deployed.
+	 * @param diff The diff of the deployed commit against ppy/master.
+	 * @return The changed files, the given diff if the last deployed commit is not known.
+	 * @throws IOException When an IOException occurs.
+	 * @throws GitAPIException When some git exception occurs.
+	 */
+	private static List<DiffEntry> computeChanges(OsuWeb instance, ObjectId to, List<DiffEntry> diff) throws IOException, GitAPIException{
+		WebState current = instance.getCurrentState();
+		Optional<SwitchResult> previous = current == null ? Optional.empty() : current.getLastDeployment();
+		if(previous.isEmpty()){
+			return diff;
+		}
+		
+		try(Timer _ = diffTime.startTimer(); ObjectReader reader = git.getRepository().newObjectReader(); RevWalk rev = new RevWalk(reader)){
+			rev.setRetainBody(false);
+			return diffTrees(reader, rev.parseCommit(ObjectId.fromString(previous.get().head())), rev.parseCommit(to));
+		}catch(MissingObjectException ignore){
+			//the previous commit was pruned
+			return diff;
+		}
+	}
+	
+	/**
+	 * Computes the <code>.md</code> files that differ between the trees of the given two commits.
+	 * Deleted files are included as well.
+	 * @param reader The reader to read the trees with.
+	 * @param from The old commit.
+	 * @param to The new commit.
+	 * @return A list of changed files.
+	 * @throws IOException When an IOException occurs.
+	 * @throws GitAPIException When some git exception occurs.
+	 */
+	private static List<DiffEntry> diffTrees(ObjectReader reader, RevCommit from, RevCommit to) throws IOException, GitAPIException{
+		//old tree
+		CanonicalTreeParser oldTree = new CanonicalTreeParser();
+		oldTree.reset(reader, from.getTree());
+		
+		//new tree
+		CanonicalTreeParser newTree = new CanonicalTreeParser();
+		newTree.reset(reader, to.getTree());
+		
+		return git.diff().setOldTree(oldTree).setNewTree(newTree).setShowNameOnly(true).call().stream().filter(item->{
+			return SwitchResult.getPath(item).endsWith(".md");
+		}).toList();
+	}
+	
+	/**
+	 * Creates a commit on top of the given parent that adds the given newspost file.
+	 * The commit is written directly to the object database using an in-core index.
+	 * @param parent The commit to add the newspost on top of.
+	 * @param path The path of the newspost file in the repository.
+	 * @param data The newspost file content.
 	 * @return The commit that was created.
-	 * @throws GitAPIException When some exception occurs.
+	 * @throws IOException When an IOException occurs.
 	 */
-	private static RevCommit commitNewsFile(String path) throws GitAPIException{
-		git.add().addFilepattern(path).call();
-		return git.commit().setCommitter("Roan Hofland", "roan@roanh.dev").setMessage("Add newspost").setOnly(path).setSign(false).call();
+	private static ObjectId commitNewsFile(ObjectId parent, String path, byte[] data) throws IOException{
+		Repository repo = git.getRepository();
+		try(ObjectInserter inserter = repo.newObjectInserter(); ObjectReader reader = inserter.newReader(); RevWalk rev = new RevWalk(reader)){
+			ObjectId blob = inserter.insert(Constants.OBJ_BLOB, data);
+			
+			//replace the file in the tree of the parent
+			DirCache index = DirCache.read(reader, rev.parseCommit(parent).getTree());
+			DirCacheEditor editor = index.editor();
+			editor.add(new PathEdit(path){
+				
+				@Override
+				public void apply(DirCacheEntry entry){
+					entry.setFileMode(FileMode.REGULAR_FILE);
+					entry.setObjectId(blob);
+				}
+			});
+			editor.finish();
+			
+			return insertCommit(inserter, index.writeTree(inserter), "Add newspost", parent);
+		}
 	}
 	
 	/**
-	 * Merges the local copy of ppy/master into the currently checked out branch.
+	 * Merges the local copy of ppy/master into the given commit. The merge is
+	 * performed in-core and the resulting merge commit is written directly to
+	 * the object database, a merge commit is always created.
+	 * @param head The commit to merge ppy/master into.
 	 * @param master A reference to the head of the current master branch.
-	 * @throws GitAPIException When some exception occurs.
+	 * @return The created merge commit.
+	 * @throws IOException When an IOException occurs.
 	 * @throws MergeConflictException When the merge fails due to a merge conflict.
 	 */
-	private static void mergeMaster(ObjectId master) throws GitAPIException, MergeConflictException{
-		if(!git.merge().include(master).setCommit(true).setMessage("Merge ppy/master").setFastForward(FastForwardMode.NO_FF).setContentMergeStrategy(ContentMergeStrategy.CONFLICT).call().getMergeStatus().isSuccessful()){
-			throw new MergeConflictException();
+	private static ObjectId mergeMaster(ObjectId head, ObjectId master) throws IOException, MergeConflictException{
+		Repository repo = git.getRepository();
+		try(ObjectInserter inserter = repo.newObjectInserter()){
+			ResolveMerger merger = (ResolveMerger)MergeStrategy.RECURSIVE.newMerger(inserter, repo.getConfig());
+			merger.setContentMergeStrategy(ContentMergeStrategy.CONFLICT);
+			if(!merger.merge(head, master)){
+				throw new MergeConflictException();
+			}
+			
+			return insertCommit(inserter, merger.getResultTreeId(), "Merge ppy/master", head, master);
 		}
 	}
 	
 	/**
-	 * Updates the local and remote copy of ppy/master with the latest changes.
+	 * Writes a new commit to the object database.
+	 * @param inserter The inserter to write the commit with.
+	 * @param tree The tree of the commit.
+	 * @param message The commit message.
+	 * @param parents The parents of the commit.
+	 * @return The created commit.
+	 * @throws IOException When an IOException occurs.
+	 */
+	private static ObjectId insertCommit(ObjectInserter inserter, ObjectId tree, String message, ObjectId... parents) throws IOException{
+		CommitBuilder commit = new CommitBuilder();
+		commit.setTreeId(tree);
+		commit.setParentIds(parents);
+		commit.setAuthor(IDENTITY);
+		commit.setCommitter(IDENTITY);
+		commit.setMessage(message);
+		
+		ObjectId id = inserter.insert(commit);
+		inserter.flush();
+		return id;
+	}
+	
+	/**
+	 * Gets the current head of the master branch. The master branch is mirrored in the
+	 * background so usually the cached state is returned directly. If the cached state
+	 * is stale a cheap check against the ref advertised by ppy is done and master is
+	 * only updated if ppy/master actually moved.
 	 * @return A reference to the current head of the master branch.
 	 * @throws GitAPIException When some exception occurs.
 	 * @throws IOException When an IOException occurs.
+	 * @see #updateMaster(boolean)
 	 */
-	private static ObjectId updateMaster() throws GitAPIException, IOException{
-		forceFetch("ppy");
-		reset("ppy", "master");
-		forcePush("master");
-		return git.getRepository().resolve("origin/master");
+	private static ObjectId getMaster() throws GitAPIException, IOException{
+		MasterState state = master;
+		if(state != null && !state.isStale()){
+			return state.commit();
+		}
+		
+		if(state != null){
+			Ref head = git.lsRemote().setTransportConfigCallback(transport).setRemote("ppy").setHeads(true).callAsMap().get(Constants.R_HEADS + Constants.MASTER);
+			if(head != null && state.commit().equals(head.getObjectId())){
+				master = new MasterState(state.commit(), Instant.now());
+				return state.commit();
+			}
+		}
+		
+		return updateMaster(false);
 	}
 	
 	/**
-	 * Resets the current branch to the given state.
+	 * Updates the master branch in the background, errors are logged.
+	 * @see #updateMaster(boolean)
+	 */
+	private static void mirrorMaster(){
+		try(Lease _ = maintenance.use()){
+			updateMaster(true);
+		}catch(GitAPIException | IOException | RuntimeException e){
+			//any exception escaping would cancel all future scheduled mirrors
+			Main.client.logError(e, "[OsuWiki] Failed to mirror ppy/master", Severity.MINOR, Priority.LOW);
+		}
+	}
+	
+	/**
+	 * Updates the local and optionally the remote copy of ppy/master with the latest
+	 * changes. Master updates are coordinated between instances and never run at the
+	 * same time. Switches do not push master here, but instead include it in their
+	 * own push so only a single push is made.
+	 * @param push True to also push the updated master branch to the upstream repository.
+	 * @return A reference to the current head of the master branch.
+	 * @throws GitAPIException When some exception occurs.
+	 * @throws IOException When an IOException occurs.
+	 */
+	private static ObjectId updateMaster(boolean push) throws GitAPIException, IOException{
+		synchronized(masterLock){
+			fetch("ppy", Constants.MASTER);
+			if(push && !isMasterMirrored()){
+				forcePush(List.of(MASTER_SPEC));
+			}
+			
+			ObjectId commit = git.getRepository().resolve("ppy/master");
+			master = new MasterState(commit, Instant.now());
+			return commit;
+		}
+	}
+	
+	/**
+	 * Checks if the upstream master branch is up to date with the local copy of ppy/master.
+	 * A missing ref on either side is treated as not mirrored.
+	 * @return True if the upstream master branch is the same as ppy/master.
+	 * @throws IOException When an IOException occurs.
+	 */
+	private static boolean isMasterMirrored() throws IOException{
+		Repository repo = git.getRepository();
+		ObjectId master = repo.resolve("ppy/master");
+		return master != null && master.equals(repo.resolve("origin/master"));
+	}
+	
+	/**
+	 * Resolves the given ref from the given namespace in the shared wiki repository.
 	 * @param name The namespace for the ref.
-	 * @param ref The ref to reset to.
-	 * @throws GitAPIException When a git exception occurs.
+	 * @param ref The ref to resolve.
+	 * @return The commit the given ref points to.
+	 * @throws IOException When an IOException occurs.
+	 * @throws JGitInternalException When the given ref does not exist.
 	 */
-	private static void reset(String name, String ref) throws GitAPIException{
-		if(COMMIT_REGEX.matcher(ref).matches()){
-			ref += "^{commit}";
-		}else{
-			ref = name + "/" + ref;
+	private static ObjectId resolve(String name, String ref) throws IOException{
+		ObjectId commit = git.getRepository().resolve(COMMIT_REGEX.matcher(ref).matches() ? (ref + "^{commit}") : (name + "/" + ref));
+		if(commit == null){
+			throw new JGitInternalException("Invalid ref name: " + ref);
 		}
 		
-		git.reset().setMode(ResetType.HARD).setRef(ref).call();
+		return commit;
 	}
 	
 	/**
-	 * Force pushes to the given target ref.
-	 * @param targetRef The upstream ref to push to.
-	 * @throws GitAPIException When a git exception occurs.
+	 * Checks if the given branch on the given remote currently points at the given commit.
+	 * This only lists the remote heads and does not fetch any objects. Errors are treated
+	 * as a mismatch so the caller falls back to a full fetch.
+	 * @param remote The remote to check.
+	 * @param ref The branch name to check.
+	 * @param commit The expected head commit of the branch.
+	 * @return True if the remote branch points at the given commit.
 	 */
-	private static void forcePush(String targetRef) throws GitAPIException{
-		git.push().setTransportConfigCallback(transport).setRefSpecs(new RefSpec("wikisync:" + targetRef)).setForce(true).setRemote("origin").call();
+	private static boolean isRemoteHead(String remote, String ref, ObjectId commit){
+		try{
+			Ref head = git.lsRemote().setTransportConfigCallback(transport).setRemote(remote).setHeads(true).callAsMap().get(Constants.R_HEADS + ref);
+			return head != null && commit.equals(head.getObjectId());
+		}catch(GitAPIException ignore){
+			return false;
+		}
+	}
+	
+	/**
+	 * Force updates the given local ref to point at the given commit.
+	 * @param ref The full name of the ref to update.
+	 * @param commit The commit to point the ref at.
+	 * @throws IOException When the ref could not be updated.
+	 */
+	private static void updateRef(String ref, ObjectId commit) throws IOException{
+		RefUpdate update = git.getRepository().updateRef(ref);
+		update.setNewObjectId(commit);
+		switch(update.forceUpdate()){
+		case NEW:
+		case FORCED:
+		case FAST_FORWARD:
+		case NO_CHANGE:
+			return;
+		default:
+			throw new IOException("Failed to update " + ref + ": " + update.getResult());
+		}
 	}
 	
 	/**
-	 * Gets the current HEAD ref.
-	 * @return The HEAD object.
-	 * @throws IOException When an IO exception occurs.
+	 * Force pushes all the given refspecs to the upstream repository in a single atomic push.
+	 * @param specs The refspecs to push.
+	 * @throws GitAPIException When a git exception occurs.
 	 */
-	private static ObjectId getHead() throws IOException{
-		return git.getRepository().resolve(Constants.HEAD);
+	private static void forcePush(List<RefSpec> specs) throws GitAPIException{
+		try(Timer _ = pushTime.startTimer()){
+			git.push().setTransportConfigCallback(transport).setRefSpecs(specs).setForce(true).setAtomic(true).setRemote("origin").call();
+		}
 	}
 	
 	/**
-	 * Force fetch all refs from the given remote.
+	 * Fetches only the given ref from the given remote into the shared wiki repository.
+	 * Branches are force fetched into their remote tracking ref, commits are fetched
+	 * directly and not at all if they are already present locally.
 	 * @param remote The remote to fetch from.
+	 * @param ref The branch or commit hash to fetch.
 	 * @throws InvalidRemoteException When the remote is invalid.
 	 * @throws TransportException When something goes wrong during transport.
 	 * @throws GitAPIException When a git exception occurs.
+	 * @throws IOException When an IOException occurs.
+	 * @throws JGitInternalException When the given ref does not exist on the remote.
 	 */
-	private static void forceFetch(String remote) throws GitAPIException{
-		git.fetch().setTransportConfigCallback(transport).setRemote(remote).setForceUpdate(true).setRemoveDeletedRefs(true).call();
+	private static void fetch(String remote, String ref) throws GitAPIException, IOException{
+		boolean commit = COMMIT_REGEX.matcher(ref).matches();
+		if(commit && git.getRepository().getObjectDatabase().has(ObjectId.fromString(ref))){
+			return;
+		}
+		
+		try{
+			fetch(remote, commit ? new RefSpec(ref) : new RefSpec("+" + Constants.R_HEADS + ref + ":" + Constants.R_REMOTES + remote + "/" + ref), commit ? "commit" : "ref");
+		}catch(TransportException e){
+			if(e.getMessage() != null && e.getMessage().startsWith("Remote does not have")){
+				throw new JGitInternalException("Invalid ref name: " + ref, e);
+			}
+			
+			throw e;
+		}
 	}
 	
 	/**
-	 * Finds the remote with the given name or creates it.
-	 * @param name The name of the remote.
-	 * @param repo The osu! wiki repository name.
+	 * Fetches the given refspec from the given remote into the shared wiki repository.
+	 * @param remote The remote to fetch from.
+	 * @param spec The refspec to fetch.
+	 * @param mode The fetch mode to record metrics under.
+	 * @throws InvalidRemoteException When the remote is invalid.
+	 * @throws TransportException When something goes wrong during transport.
 	 * @throws GitAPIException When a git exception occurs.
+	 * @throws IOException When an IOException occurs.
 	 */
-	private static void findRemote(String name, String repo) throws GitAPIException{
-		try{
-			RemoteConfig remote = git.remoteList().call().stream().filter(r->r.getName().equals(name)).findFirst().orElse(null);
-			if(remote != null && !remote.getURIs().getFirst().getHumanishName().equals(repo)){
-				git.remoteRemove().setRemoteName(name).call();
-				remote = null;
-			}
-
-			if(remote == null){
-				git.remoteAdd().setName(name).setUri(new URIish("git@github.com:" + name + "/" + repo + ".git")).call();
-			}
-
-			remotes.add(name);
-		}catch(URISyntaxException ignore){
-			throw new InvalidRemoteException(name);
+	private static void fetch(String remote, RefSpec spec, String mode) throws GitAPIException, IOException{
+		synchronized(remotes.getFetchLock(remote)){
+			Set<Path> packs = listPacks();
+			ReceiveMonitor monitor = new ReceiveMonitor();
+			
+			git.fetch().setTransportConfigCallback(transport).setRemote(remote).setRefSpecs(spec).setForceUpdate(true).setProgressMonitor(monitor).call();
+			fetchObjects.labelValues(mode).inc(monitor.getObjectCount());
+			fetchBytes.labelValues(mode).inc(listPacks().stream().filter(pack->!packs.contains(pack)).mapToLong(pack->pack.toFile().length()).sum());
+		}
+	}
+	
+	/**
+	 * Lists all pack files in the shared wiki repository.
+	 * @return All pack files in the shared wiki repository.
+	 * @throws IOException When an IOException occurs.
+	 */
+	private static Set<Path> listPacks() throws IOException{
+		try(Stream<Path> files = Files.list(git.getRepository().getDirectory().toPath().resolve("objects").resolve("pack"))){
+			return files.filter(file->file.getFileName().toString().endsWith(".pack")).collect(Collectors.toSet());
 		}
 	}
 	
 	/**
 	 * Record with information about a branch switch.
 	 * @author Roan
-	 * @param diff A diff with all changed files.
+	 * @param diff A diff with all changed files, including deleted files.
+	 * @param changed The files changed since the commit that was last deployed to the instance.
 	 * @param head The new head commit hash.
-	 * @see OsuWiki#switchBranch(String, String, String, boolean, OsuWeb)
+	 * @param timings The time spent in each stage of the switch.
+	 * @see OsuWiki#switchBranch(WebState, OsuWeb)
 	 */
-	public static final record SwitchResult(List<DiffEntry> diff, String head){
+	public static final record SwitchResult(List<DiffEntry> diff, List<DiffEntry> changed, String head, SwitchTimings timings){
 		
 		/**
 		 * Tests if there are news post items in this diff.
 		 * @return True if this diff contains news posts.
 		 */
 		public boolean hasNews(){
-			return diff.stream().map(DiffEntry::getNewPath).anyMatch(p->p.startsWith("news/"));
+			return diff.stream().anyMatch(item->getPath(item).startsWith("news/"));
+		}
+		
+		/**
+		 * Gets the repository path of the file changed by the given diff entry.
+		 * @param entry The diff entry.
+		 * @return The old path for deleted files, else the new path.
+		 */
+		public static String getPath(DiffEntry entry){
+			return entry.getChangeType() == ChangeType.DELETE ? entry.getOldPath() : entry.getNewPath();
+		}
+		
+		/**
+		 * Returns a copy of this result with the given switch timings.
+		 * @param timings The new switch timings.
+		 * @return A copy of this result with the given timings.
+		 */
+		public SwitchResult withTimings(SwitchTimings timings){
+			return new SwitchResult(diff, changed, head, timings);
+		}
+	}
+	
+	/**
+	 * Progress monitor that counts the number of objects received during a fetch.
+	 * @author Roan
+	 */
+	private static final class ReceiveMonitor implements ProgressMonitor{
+		/**
+		 * Title of the task that receives objects.
+		 */
+		private static final String RECEIVE_TASK = "Receiving objects";
+		/**
+		 * Whether the current task is receiving objects.
+		 */
+		private boolean receiving = false;
+		/**
+		 * The number of objects received so far.
+		 */
+		private long objects = 0L;
+		
+		/**
+		 * Gets the number of objects received.
+		 * @return The number of received objects.
+		 */
+		private long getObjectCount(){
+			return objects;
+		}
+
+		@Override
+		public void start(int totalTasks){
+		}
+
+		@Override
+		public void beginTask(String title, int totalWork){
+			receiving = RECEIVE_TASK.equals(title);
+		}
+
+		@Override
+		public void update(int completed){
+			if(receiving){
+				objects += completed;
+			}
+		}
+
+		@Override
+		public void endTask(){
+			receiving = false;
+		}
+
+		@Override
+		public boolean isCancelled(){
+			return false;
+		}
+
+		@Override
+		public void showDuration(boolean enabled){
+		}
+	}
+	
+	/**
+	 * Record with the last known state of the master branch.
+	 * @author Roan
+	 * @param commit The head commit of the master branch.
+	 * @param checked The instant the master branch was last checked against ppy/master.
+	 */
+	private static final record MasterState(ObjectId commit, Instant checked){
+		
+		/**
+		 * Checks if this state is too old to be used without checking ppy/master again.
+		 * @return True if this state is stale.
+		 */
+		private boolean isStale(){
+			return checked.plus(MASTER_MAX_AGE).isBefore(Instant.now());
 		}
 	}
 	
 	static{
-		SshdSessionFactory sshSessionFactory = new SshdSessionFactoryBuilder().setPreferredAuthentications("publickey").setHomeDirectory(Main.AUTH_PATH).setSshDirectory(Main.AUTH_PATH).build(null);
+		SshdSessionFactory sshdSessionFactory = new SshdSessionFactoryBuilder().setPreferredAuthentications("publickey").setHomeDirectory(Main.AUTH_PATH).setSshDirectory(Main.AUTH_PATH).build(null);
+		SshSessionFactory sshSessionFactory = new PooledSshSessionFactory(sshdSessionFactory, SSH_IDLE_TIMEOUT);
 		transport = transport->{
 			SshTransport sshTransport = (SshTransport)transport;
 			sshTransport.setSshSessionFactory(sshSessionFactory);
@@ -0,0 +1,85 @@
+/*
+ * osu! wiki preview site
+ * Copyright (C) 2023  Roan Hofland (roan@roanh.dev) and contributors.
+ * GitHub Repository: https://github.com/RoanH/osuWikiPreview
+ * GitLab Repository: https://git.roanh.dev/roan/osuwikipreview
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package dev.roanh.wiki;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Bounded buffer that retains the most recent lines of output written by a job,
+ * once the buffer is full the oldest lines are discarded.
+ * @author Roan
+ */
+public class OutputBuffer implements Consumer<String>{
+	/**
+	 * The maximum number of lines retained.
+	 */
+	private final int capacity;
+	/**
+	 * The retained lines, oldest first.
+	 */
+	private final Deque<String> lines;
+	/**
+	 * The total number of lines ever written to this buffer.
+	 */
+	private long total = 0L;
+	
+	/**
+	 * Constructs a new output buffer.
+	 * @param capacity The maximum number of lines to retain.
+	 */
+	public OutputBuffer(int capacity){
+		this.capacity = capacity;
+		lines = new ArrayDeque<String>(capacity);
+	}
+	
+	@Override
+	public synchronized void accept(String line){
+		if(lines.size() == capacity){
+			lines.poll();
+		}
+		
+		lines.add(line);
+		total++;
+	}
+	
+	/**
+	 * Gets the most recent lines in this buffer.
+	 * @param count The maximum number of lines to return.
+	 * @return The most recent lines, oldest first.
+	 */
+	public synchronized List<String> tail(int count){
+		List<String> tail = new ArrayList<String>(Math.min(count, lines.size()));
+		lines.stream().skip(Math.max(0, lines.size() - count)).forEach(tail::add);
+		return tail;
+	}
+	
+	/**
+	 * Gets the total number of lines ever written to this buffer,
+	 * including lines that are no longer retained.
+	 * @return The total number of lines written.
+	 */
+	public synchronized long getTotalLines(){
+		return total;
+	}
+}
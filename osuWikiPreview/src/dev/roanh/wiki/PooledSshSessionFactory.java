@@ -0,0 +1,313 @@
+/*
+ * osu! wiki preview site
+ * Copyright (C) 2023  Roan Hofland (roan@roanh.dev) and contributors.
+ * GitHub Repository: https://github.com/RoanH/osuWikiPreview
+ * GitLab Repository: https://git.roanh.dev/roan/osuwikipreview
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package dev.roanh.wiki;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jgit.errors.TransportException;
+import org.eclipse.jgit.transport.CredentialsProvider;
+import org.eclipse.jgit.transport.RemoteSession;
+import org.eclipse.jgit.transport.RemoteSession2;
+import org.eclipse.jgit.transport.SshSessionFactory;
+import org.eclipse.jgit.transport.URIish;
+import org.eclipse.jgit.transport.sshd.SshdSession;
+import org.eclipse.jgit.transport.sshd.SshdSessionFactory;
+import org.eclipse.jgit.util.FS;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.prometheus.metrics.core.datapoints.Timer;
+import io.prometheus.metrics.core.metrics.Counter;
+import io.prometheus.metrics.core.metrics.Gauge;
+import io.prometheus.metrics.core.metrics.Summary;
+
+/**
+ * SSH session factory that keeps SSH connections alive after a transport
+ * is done with them so later fetches and pushes to the same host can open
+ * a new channel on an existing connection instead of doing a full handshake.
+ * Idle connections are closed after a timeout and connections that turn out
+ * to be broken are transparently replaced.
+ * @author Roan
+ */
+public class PooledSshSessionFactory extends SshSessionFactory{
+	/**
+	 * Logger used to report connections that broke while idle.
+	 */
+	private static final Logger logger = LoggerFactory.getLogger(PooledSshSessionFactory.class);
+	/**
+	 * Counter for the number of sessions handed out by whether they were reused.
+	 */
+	private static final Counter sessions = Counter.builder().name("wikipreview_ssh_sessions").help("Number of SSH sessions handed out to transports.").labelNames("result").register();
+	/**
+	 * Summary of the time it takes to establish a new SSH connection.
+	 */
+	private static final Summary handshakeTime = Summary.builder().name("wikipreview_ssh_handshake_time").help("Time spent establishing new SSH connections.").register();
+	/**
+	 * Counter for the number of broken connections that were replaced.
+	 */
+	private static final Counter reconnects = Counter.builder().name("wikipreview_ssh_reconnects").help("Number of broken SSH connections that were replaced.").register();
+	/**
+	 * Gauge with the number of idle SSH connections kept alive.
+	 */
+	private static final Gauge idleSessions = Gauge.builder().name("wikipreview_ssh_idle_sessions").help("Number of idle SSH connections kept alive.").register();
+	/**
+	 * The factory used to establish new SSH connections.
+	 */
+	private final SshdSessionFactory factory;
+	/**
+	 * The amount of time a connection can be idle before it is closed.
+	 */
+	private final Duration idleTimeout;
+	/**
+	 * Idle connections by the user, host and port they are connected to, most recently used first.
+	 */
+	private final Map<String, Deque<PooledSession>> idle = new HashMap<String, Deque<PooledSession>>();
+	/**
+	 * Executor used to close connections that have been idle for too long.
+	 */
+	private final ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(Thread.ofPlatform().daemon().name("ssh-sweeper").factory());
+	
+	/**
+	 * Constructs a new pooled SSH session factory.
+	 * @param factory The factory to use to establish new connections.
+	 * @param idleTimeout The amount of time a connection can be idle before it is closed.
+	 */
+	public PooledSshSessionFactory(SshdSessionFactory factory, Duration idleTimeout){
+		this.factory = factory;
+		this.idleTimeout = idleTimeout;
+		long interval = Math.max(1L, idleTimeout.toSeconds() / 2L);
+		sweeper.scheduleWithFixedDelay(this::closeIdleSessions, interval, interval, TimeUnit.SECONDS);
+	}
+	
+	@Override
+	public RemoteSession getSession(URIish uri, CredentialsProvider credentialsProvider, FS fs, int tms) throws TransportException{
+		String key = getKey(uri);
+		synchronized(idle){
+			Deque<PooledSession> queue = idle.get(key);
+			while(queue != null && !queue.isEmpty()){
+				PooledSession session = queue.pop();
+				updateIdleCount();
+				if(session.isOpen()){
+					sessions.labelValues("reused").inc();
+					session.update(credentialsProvider, fs, tms);
+					return session;
+				}
+			}
+		}
+		
+		sessions.labelValues("created").inc();
+		return new PooledSession(uri, credentialsProvider, fs, tms);
+	}
+	
+	@Override
+	public void releaseSession(RemoteSession session){
+		if(session instanceof PooledSession pooled && pooled.isOpen()){
+			pooled.lastUsed = Instant.now();
+			synchronized(idle){
+				idle.computeIfAbsent(getKey(pooled.uri), _->new ArrayDeque<PooledSession>()).push(pooled);
+				updateIdleCount();
+			}
+		}else{
+			session.disconnect();
+		}
+	}
+	
+	@Override
+	public String getType(){
+		return factory.getType();
+	}
+	
+	/**
+	 * Closes all connections that have been idle for longer than the idle timeout.
+	 */
+	private void closeIdleSessions(){
+		Instant threshold = Instant.now().minus(idleTimeout);
+		synchronized(idle){
+			for(Deque<PooledSession> queue : idle.values()){
+				Iterator<PooledSession> iter = queue.iterator();
+				while(iter.hasNext()){
+					PooledSession session = iter.next();
+					if(!session.isOpen() || session.lastUsed.isBefore(threshold)){
+						iter.remove();
+						session.disconnect();
+					}
+				}
+			}
+			
+			updateIdleCount();
+		}
+	}
+	
+	/**
+	 * Updates the idle connection gauge, the caller is expected to hold the lock on the idle connections.
+	 */
+	private void updateIdleCount(){
+		idleSessions.set(idle.values().stream().mapToInt(Deque::size).sum());
+	}
+	
+	/**
+	 * Establishes a new SSH connection to the given URI.
+	 * @param uri The URI to connect to.
+	 * @param credentialsProvider The provider for any required credentials.
+	 * @param fs The file system abstraction to use.
+	 * @param tms The connection timeout in milliseconds.
+	 * @return The newly established connection.
+	 * @throws TransportException When the connection could not be established.
+	 */
+	private SshdSession connect(URIish uri, CredentialsProvider credentialsProvider, FS fs, int tms) throws TransportException{
+		try(Timer _ = handshakeTime.startTimer()){
+			return factory.getSession(uri, credentialsProvider, fs, tms);
+		}
+	}
+	
+	/**
+	 * Gets the key idle connections to the given URI are stored under.
+	 * @param uri The URI to get the key for.
+	 * @return The pool key for the URI.
+	 */
+	private static String getKey(URIish uri){
+		return uri.getUser() + "@" + uri.getHost() + ":" + uri.getPort();
+	}
+	
+	/**
+	 * SSH session backed by a connection that is kept alive after the
+	 * transport using it is done and reconnects if the connection broke.
+	 * @author Roan
+	 */
+	private final class PooledSession implements RemoteSession2{
+		/**
+		 * The URI the session is connected to.
+		 */
+		private final URIish uri;
+		/**
+		 * The provider for any credentials required to reconnect.
+		 */
+		private CredentialsProvider credentialsProvider;
+		/**
+		 * The file system abstraction to use when reconnecting.
+		 */
+		private FS fs;
+		/**
+		 * The connection timeout in milliseconds.
+		 */
+		private int tms;
+		/**
+		 * The underlying SSH connection.
+		 */
+		private volatile SshdSession session;
+		/**
+		 * Whether the underlying SSH connection was closed.
+		 */
+		private volatile boolean closed = false;
+		/**
+		 * The instant this session was last released.
+		 */
+		private Instant lastUsed;
+		
+		/**
+		 * Constructs a new pooled session by establishing a new connection.
+		 * @param uri The URI to connect to.
+		 * @param credentialsProvider The provider for any required credentials.
+		 * @param fs The file system abstraction to use.
+		 * @param tms The connection timeout in milliseconds.
+		 * @throws TransportException When the connection could not be established.
+		 */
+		private PooledSession(URIish uri, CredentialsProvider credentialsProvider, FS fs, int tms) throws TransportException{
+			this.uri = uri;
+			update(credentialsProvider, fs, tms);
+			open();
+		}
+		
+		/**
+		 * Updates the settings to use when this session has to reconnect.
+		 * @param credentialsProvider The provider for any required credentials.
+		 * @param fs The file system abstraction to use.
+		 * @param tms The connection timeout in milliseconds.
+		 */
+		private void update(CredentialsProvider credentialsProvider, FS fs, int tms){
+			this.credentialsProvider = credentialsProvider;
+			this.fs = fs;
+			this.tms = tms;
+		}
+		
+		/**
+		 * Establishes a new connection for this session.
+		 * @throws TransportException When the connection could not be established.
+		 */
+		private void open() throws TransportException{
+			SshdSession connection = connect(uri, credentialsProvider, fs, tms);
+			connection.addCloseListener(closedSession->{
+				//ignore late notifications for connections that were already replaced
+				if(closedSession == session){
+					closed = true;
+				}
+			});
+			
+			session = connection;
+			closed = false;
+		}
+		
+		/**
+		 * Checks if the underlying connection of this session is still open.
+		 * @return True if the connection is still open.
+		 */
+		private boolean isOpen(){
+			return !closed;
+		}
+		
+		@Override
+		public Process exec(String commandName, int timeout) throws IOException{
+			return exec(commandName, null, timeout);
+		}
+		
+		@Override
+		public Process exec(String commandName, Map<String, String> environment, int timeout) throws IOException{
+			if(!closed){
+				try{
+					return session.exec(commandName, environment, timeout);
+				}catch(IOException e){
+					//the connection most likely broke while idle, reconnect below
+					logger.debug("Failed to open a channel on a pooled SSH connection, reconnecting", e);
+				}
+			}
+			
+			reconnects.inc();
+			session.disconnect();
+			open();
+			return session.exec(commandName, environment, timeout);
+		}
+		
+		@Override
+		public void disconnect(){
+			closed = true;
+			session.disconnect();
+		}
+	}
+}
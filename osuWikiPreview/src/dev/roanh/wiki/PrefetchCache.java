@@ -0,0 +1,204 @@
+/*
+ * osu! wiki preview site
+ * Copyright (C) 2023  Roan Hofland (roan@roanh.dev) and contributors.
+ * GitHub Repository: https://github.com/RoanH/osuWikiPreview
+ * GitLab Repository: https://git.roanh.dev/roan/osuwikipreview
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package dev.roanh.wiki;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.Optional;
+
+import org.eclipse.jgit.diff.DiffEntry;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.Repository;
+
+import io.prometheus.metrics.core.metrics.Counter;
+import io.prometheus.metrics.core.metrics.Gauge;
+
+/**
+ * Bounded cache of pull requests on the official osu! wiki repository that
+ * were fetched ahead of time. For each pull request the head commit is kept
+ * reachable through a local ref and the diff against ppy/master is stored.
+ * Once the cache is full the least recently used pull request is evicted
+ * and its ref deleted, so its objects can be pruned by repository maintenance.
+ * @author Roan
+ */
+public class PrefetchCache{
+	/**
+	 * Gauge with the number of prefetched pull requests.
+	 */
+	private static final Gauge cacheSize = Gauge.builder().name("wikipreview_prefetch_size").help("Number of prefetched pull requests.").register();
+	/**
+	 * Counter for prefetch cache lookups by whether they were a hit.
+	 */
+	private static final Counter lookups = Counter.builder().name("wikipreview_prefetch_lookups").help("Number of prefetch cache lookups.").labelNames("result").register();
+	/**
+	 * Counter for the number of evicted pull requests.
+	 */
+	private static final Counter evictions = Counter.builder().name("wikipreview_prefetch_evictions").help("Number of pull requests evicted from the prefetch cache.").register();
+	/**
+	 * Prefix of all local refs managed by the prefetch cache.
+	 */
+	private static final String PREFETCH_ROOT = "refs/prefetch/";
+	/**
+	 * Prefix of the local refs that keep prefetched pull requests reachable.
+	 */
+	public static final String PREFETCH_REFS = PREFETCH_ROOT + "pull/";
+	/**
+	 * Maximum age of a prefetched pull request head before it is no longer trusted.
+	 */
+	private static final Duration MAX_AGE = Duration.ofDays(1L);
+	/**
+	 * The repository pull requests are prefetched into.
+	 */
+	private final Repository repo;
+	/**
+	 * The maximum number of prefetched pull requests.
+	 */
+	private final int capacity;
+	/**
+	 * Prefetched pull requests by pull request number, in access order.
+	 */
+	private final LinkedHashMap<Integer, Prefetch> prefetches = new LinkedHashMap<Integer, Prefetch>(16, 0.75F, true);
+	
+	/**
+	 * Constructs a new prefetch cache. Any prefetch refs left behind by a
+	 * previous run are deleted, as the cache starts out empty and would
+	 * otherwise keep their objects reachable forever.
+	 * @param repo The repository pull requests are prefetched into.
+	 * @param capacity The maximum number of prefetched pull requests.
+	 * @throws IOException When an IOException occurs.
+	 */
+	public PrefetchCache(Repository repo, int capacity) throws IOException{
+		this.repo = repo;
+		this.capacity = capacity;
+		
+		for(Ref ref : repo.getRefDatabase().getRefsByPrefix(PREFETCH_ROOT)){
+			deleteRef(ref.getName());
+		}
+	}
+	
+	/**
+	 * Adds a prefetched pull request to the cache, evicting the least
+	 * recently used pull request if the cache is full.
+	 * @param prefetch The prefetched pull request.
+	 * @throws IOException When an IOException occurs.
+	 */
+	public synchronized void put(Prefetch prefetch) throws IOException{
+		prefetches.put(prefetch.number(), prefetch);
+		
+		Iterator<Entry<Integer, Prefetch>> iter = prefetches.entrySet().iterator();
+		while(prefetches.size() > capacity && iter.hasNext()){
+			Prefetch evicted = iter.next().getValue();
+			iter.remove();
+			deleteRef(PREFETCH_REFS + evicted.number());
+			evictions.inc();
+		}
+		
+		cacheSize.set(prefetches.size());
+	}
+	
+	/**
+	 * Removes the given pull request from the cache because its head is
+	 * known to be outdated and deletes its local ref.
+	 * @param number The number of the pull request.
+	 * @throws IOException When an IOException occurs.
+	 */
+	public synchronized void invalidate(int number) throws IOException{
+		prefetches.remove(number);
+		cacheSize.set(prefetches.size());
+		deleteRef(PREFETCH_REFS + number);
+	}
+	
+	/**
+	 * Finds the prefetched head commit of the pull request from the given branch.
+	 * A hit counts as a use of the pull request for eviction purposes.
+	 * @param owner The owner of the repository the pull request branch is in.
+	 * @param branch The name of the pull request branch.
+	 * @return The prefetched head commit of the branch if known.
+	 */
+	public synchronized Optional<ObjectId> getHead(String owner, String branch){
+		Instant threshold = Instant.now().minus(MAX_AGE);
+		for(Prefetch prefetch : prefetches.values()){
+			if(prefetch.owner().equalsIgnoreCase(owner) && prefetch.branch().equals(branch) && prefetch.fetched().isAfter(threshold)){
+				lookups.labelValues("hit").inc();
+				prefetches.get(prefetch.number());
+				return Optional.of(prefetch.head());
+			}
+		}
+		
+		lookups.labelValues("miss").inc();
+		return Optional.empty();
+	}
+	
+	/**
+	 * Gets the precomputed diff between the given master and head commit.
+	 * @param master The ppy/master commit.
+	 * @param head The head commit.
+	 * @return The precomputed diff if available.
+	 */
+	public synchronized Optional<List<DiffEntry>> getDiff(ObjectId master, ObjectId head){
+		for(Prefetch prefetch : prefetches.values()){
+			if(prefetch.master().equals(master) && prefetch.head().equals(head)){
+				prefetches.get(prefetch.number());
+				return Optional.of(prefetch.diff());
+			}
+		}
+		
+		return Optional.empty();
+	}
+	
+	/**
+	 * Deletes the given local prefetch ref, if it exists.
+	 * @param ref The full name of the ref to delete.
+	 * @throws IOException When the ref could not be deleted.
+	 */
+	private void deleteRef(String ref) throws IOException{
+		RefUpdate update = repo.updateRef(ref);
+		update.setForceUpdate(true);
+		switch(update.delete()){
+		case NEW:
+		case FORCED:
+		case NO_CHANGE:
+			return;
+		default:
+			throw new IOException("Failed to delete " + ref + ": " + update.getResult());
+		}
+	}
+	
+	/**
+	 * A prefetched pull request.
+	 * @author Roan
+	 * @param number The number of the pull request.
+	 * @param owner The owner of the repository the pull request branch is in.
+	 * @param branch The name of the pull request branch.
+	 * @param head The head commit of the pull request.
+	 * @param master The ppy/master commit the diff was computed against.
+	 * @param diff The diff of the pull request against ppy/master.
+	 * @param fetched The instant the pull request was fetched.
+	 */
+	public static final record Prefetch(int number, String owner, String branch, ObjectId head, ObjectId master, List<DiffEntry> diff, Instant fetched){
+	}
+}
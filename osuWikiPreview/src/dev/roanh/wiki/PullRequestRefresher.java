@@ -0,0 +1,197 @@
+/*
+ * osu! wiki preview site
+ * Copyright (C) 2023  Roan Hofland (roan@roanh.dev) and contributors.
+ * GitHub Repository: https://github.com/RoanH/osuWikiPreview
+ * GitLab Repository: https://git.roanh.dev/roan/osuwikipreview
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package dev.roanh.wiki;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import net.dv8tion.jda.api.entities.MessageEmbed;
+import net.dv8tion.jda.api.entities.channel.concrete.TextChannel;
+
+import io.prometheus.metrics.core.metrics.Counter;
+
+import dev.roanh.isla.reporting.Detail;
+import dev.roanh.isla.reporting.Priority;
+import dev.roanh.isla.reporting.Severity;
+import dev.roanh.wiki.OsuWiki.SwitchResult;
+import dev.roanh.wiki.cmd.BaseSwitchCommand;
+import dev.roanh.wiki.data.WebState;
+import dev.roanh.wiki.exception.MergeConflictException;
+import dev.roanh.wiki.github.hooks.PullRequestSyncData;
+
+/**
+ * Automatically refreshes instances that are showing a pull request when
+ * new commits are pushed to that pull request. Bursts of pushes are coalesced
+ * so that only a single refresh is run once the pull request is quiet again.
+ * @author Roan
+ */
+public final class PullRequestRefresher{
+	/**
+	 * Counter for automatic refreshes by result.
+	 */
+	private static final Counter refreshes = Counter.builder().name("wikipreview_auto_refreshes").help("Number of automatic pull request refreshes.").labelNames("result").register();
+	/**
+	 * Time to wait after the last push to a pull request before refreshing.
+	 */
+	private static final Duration DEBOUNCE = Duration.ofSeconds(30L);
+	/**
+	 * Executor used to schedule debounced refreshes.
+	 */
+	private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+	/**
+	 * Scheduled refreshes that have not been submitted yet by instance ID.
+	 */
+	private static final Map<Integer, ScheduledFuture<?>> pending = new HashMap<Integer, ScheduledFuture<?>>();
+	/**
+	 * IDs of the instances with a refresh waiting in their job queue.
+	 */
+	private static final Set<Integer> queued = new HashSet<Integer>();
+	
+	/**
+	 * Prevent instantiation.
+	 */
+	private PullRequestRefresher(){
+	}
+	
+	/**
+	 * Handles new commits being pushed to a pull request by scheduling
+	 * a refresh for all instances that are showing the pull request.
+	 * @param data Data about the synchronisation action.
+	 */
+	public static void handlePullRequestCommit(PullRequestSyncData data){
+		long id = data.pullRequest().id();
+		for(OsuWeb web : InstanceManager.getInstances()){
+			if(isShowing(web, id)){
+				schedule(web, id);
+			}
+		}
+	}
+	
+	/**
+	 * Schedules a refresh of the given instance, replacing any refresh that
+	 * was scheduled before but did not start yet.
+	 * @param web The instance to refresh.
+	 * @param pr The ID of the pull request the instance is showing.
+	 */
+	private static synchronized void schedule(OsuWeb web, long pr){
+		int id = web.getInstance().getId();
+		ScheduledFuture<?> previous = pending.get(id);
+		if(previous != null){
+			previous.cancel(false);
+			refreshes.labelValues("coalesced").inc();
+		}
+		
+		pending.put(id, scheduler.schedule(()->submit(web, pr), DEBOUNCE.toMillis(), TimeUnit.MILLISECONDS));
+	}
+	
+	/**
+	 * Submits a refresh of the given instance to its job queue, unless
+	 * a refresh is already waiting in the queue.
+	 * @param web The instance to refresh.
+	 * @param pr The ID of the pull request the instance is showing.
+	 */
+	private static synchronized void submit(OsuWeb web, long pr){
+		int id = web.getInstance().getId();
+		pending.remove(id);
+		if(!queued.add(id)){
+			refreshes.labelValues("coalesced").inc();
+			return;
+		}
+		
+		if(web.getJobQueue().submit("refresh", ()->refresh(web, pr), ()->dequeue(id)).isEmpty()){
+			dequeue(id);
+			refreshes.labelValues("rejected").inc();
+		}
+	}
+	
+	/**
+	 * Marks the given instance as no longer having a refresh waiting in its job queue.
+	 * @param id The ID of the instance.
+	 */
+	private static synchronized void dequeue(int id){
+		queued.remove(id);
+	}
+	
+	/**
+	 * Refreshes the given instance and posts the result in its channel.
+	 * @param web The instance to refresh.
+	 * @param pr The ID of the pull request the instance is expected to show.
+	 */
+	private static void refresh(OsuWeb web, long pr){
+		dequeue(web.getInstance().getId());
+		if(!isShowing(web, pr)){
+			//the instance was switched to something else in the meantime
+			refreshes.labelValues("skipped").inc();
+			return;
+		}
+		
+		WebState state = web.getCurrentState();
+		try{
+			SwitchResult diff = OsuWiki.switchBranch(state, web);
+			MessageEmbed embed = BaseSwitchCommand.completeSwitch(state, web, diff);
+			notify(web, "Automatically refreshed after new commits were pushed to the pull request.", embed);
+			refreshes.labelValues("success").inc();
+		}catch(MergeConflictException ignore){
+			notify(web, "Automatic refresh failed to merge with ppy/master due to a merge conflict.");
+			refreshes.labelValues("failure").inc();
+		}catch(Exception e){
+			Main.client.logError(e, "[PullRequestRefresher] Automatic refresh failed", Severity.MINOR, Priority.MEDIUM, Detail.of("Instance", web.getInstance().getId()));
+			refreshes.labelValues("failure").inc();
+		}
+	}
+	
+	/**
+	 * Checks if the given instance is currently showing the given pull request.
+	 * @param web The instance to check.
+	 * @param pr The ID of the pull request.
+	 * @return True if the instance is showing the given pull request.
+	 */
+	private static boolean isShowing(OsuWeb web, long pr){
+		if(!web.hasState()){
+			return false;
+		}
+		
+		return web.getCurrentState().getPullRequest().map(state->state.id() == pr).orElse(false);
+	}
+	
+	/**
+	 * Sends a message to the Discord channel of the given instance. If the
+	 * channel cannot be found the problem is logged and no message is sent.
+	 * @param web The instance to send the message for.
+	 * @param message The message to send.
+	 * @param embeds The embeds to attach to the message.
+	 */
+	private static void notify(OsuWeb web, String message, MessageEmbed... embeds){
+		long id = web.getInstance().getChannel();
+		TextChannel channel = Main.client.getJDA().getTextChannelById(id);
+		if(channel == null){
+			Main.client.logError(new IllegalStateException("Discord channel not found: " + id), "[PullRequestRefresher] Failed to find the channel of an instance", Severity.MINOR, Priority.MEDIUM, Detail.of("Instance", web.getInstance().getId()));
+		}else{
+			channel.sendMessage(message).addEmbeds(embeds).queue();
+		}
+	}
+}
@@ -0,0 +1,127 @@
+/*
+ * osu! wiki preview site
+ * Copyright (C) 2023  Roan Hofland (roan@roanh.dev) and contributors.
+ * GitHub Repository: https://github.com/RoanH/osuWikiPreview
+ * GitLab Repository: https://git.roanh.dev/roan/osuwikipreview
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package dev.roanh.wiki;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpClient.Redirect;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.time.Duration;
+import java.time.Instant;
+
+import io.prometheus.metrics.core.metrics.Counter;
+import io.prometheus.metrics.core.metrics.Histogram;
+
+import dev.roanh.wiki.data.Instance;
+import dev.roanh.wiki.exception.WebException;
+
+/**
+ * Probe that checks whether an osu! web instance is actually serving requests.
+ * A container that was just started still has to boot Octane, so until
+ * then requests either fail to connect or return a server error.
+ * @author Roan
+ */
+public final class ReadinessProbe{
+	/**
+	 * Histogram of the time between starting an instance container and the instance serving requests.
+	 */
+	private static final Histogram startTime = Histogram.builder().name("wikipreview_instance_start_time").help("Time between starting an instance container and the instance serving requests.").labelNames("instance", "tag").classicUpperBounds(1.0D, 2.5D, 5.0D, 10.0D, 20.0D, 30.0D, 60.0D, 120.0D, 300.0D).register();
+	/**
+	 * Counter for the number of instances that did not become ready before their deadline.
+	 */
+	private static final Counter timeouts = Counter.builder().name("wikipreview_instance_ready_timeouts").help("Number of times an instance did not become ready before its deadline.").labelNames("instance").register();
+	/**
+	 * Maximum time a freshly started instance is given to become ready.
+	 */
+	private static final Duration START_TIMEOUT = Duration.ofMinutes(3L);
+	/**
+	 * Time between consecutive probes.
+	 */
+	private static final Duration INTERVAL = Duration.ofMillis(500L);
+	/**
+	 * Maximum time a single probe request is allowed to take.
+	 */
+	private static final Duration REQUEST_TIMEOUT = Duration.ofSeconds(10L);
+	/**
+	 * HTTP client used to probe instances.
+	 */
+	private static final HttpClient client = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(2L)).followRedirects(Redirect.NEVER).build();
+	
+	/**
+	 * Prevent instantiation.
+	 */
+	private ReadinessProbe(){
+	}
+	
+	/**
+	 * Waits for a freshly started instance to become ready and records how long it took.
+	 * @param instance The instance that was started.
+	 * @param started The instant the instance container was started.
+	 * @throws WebException When the instance did not become ready in time or waiting was interrupted.
+	 */
+	public static void awaitStart(Instance instance, Instant started) throws WebException{
+		if(!await(instance, START_TIMEOUT)){
+			if(Thread.currentThread().isInterrupted()){
+				throw new WebException("Interrupted while waiting for instance " + instance.getId() + " to become ready.");
+			}
+			
+			throw new WebException("Instance " + instance.getId() + " did not become ready within " + START_TIMEOUT.toSeconds() + " seconds.");
+		}
+		
+		startTime.labelValues(String.valueOf(instance.getId()), instance.getTag()).observe(Duration.between(started, Instant.now()).toMillis() / 1000.0D);
+	}
+	
+	/**
+	 * Waits for the given instance to serve requests, returning immediately if it already does.
+	 * @param instance The instance to wait for.
+	 * @param timeout The maximum time to wait.
+	 * @return True if the instance is ready, false if it did not become ready
+	 *         in time or if the calling thread was interrupted.
+	 */
+	public static boolean await(Instance instance, Duration timeout){
+		Instant deadline = Instant.now().plus(timeout);
+		HttpRequest request = HttpRequest.newBuilder(URI.create("http://localhost:" + instance.getPort() + "/")).timeout(REQUEST_TIMEOUT).GET().build();
+		
+		try{
+			while(true){
+				try{
+					//anything but a server error means Octane is handling requests
+					if(client.send(request, BodyHandlers.discarding()).statusCode() < 500){
+						return true;
+					}
+				}catch(IOException ignore){
+					//not accepting connections yet
+				}
+				
+				if(Instant.now().plus(INTERVAL).isAfter(deadline)){
+					timeouts.labelValues(String.valueOf(instance.getId())).inc();
+					return false;
+				}
+				
+				Thread.sleep(INTERVAL);
+			}
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+}
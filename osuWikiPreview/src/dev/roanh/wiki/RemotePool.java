@@ -0,0 +1,251 @@
+/*
+ * osu! wiki preview site
+ * Copyright (C) 2023  Roan Hofland (roan@roanh.dev) and contributors.
+ * GitHub Repository: https://github.com/RoanH/osuWikiPreview
+ * GitLab Repository: https://git.roanh.dev/roan/osuwikipreview
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package dev.roanh.wiki;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.api.errors.InvalidRemoteException;
+import org.eclipse.jgit.lib.BatchRefUpdate;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.NullProgressMonitor;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.RefDatabase;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.transport.ReceiveCommand;
+import org.eclipse.jgit.transport.RemoteConfig;
+import org.eclipse.jgit.transport.URIish;
+
+import io.prometheus.metrics.core.metrics.Counter;
+import io.prometheus.metrics.core.metrics.Gauge;
+
+/**
+ * Bounded pool of the contributor remotes configured in the shared
+ * osu! wiki repository. Once the pool is full the least recently used
+ * remote is removed together with all of its remote tracking refs.
+ * @author Roan
+ */
+public class RemotePool{
+	/**
+	 * Gauge with the number of contributor remotes in the pool.
+	 */
+	private static final Gauge poolSize = Gauge.builder().name("wikipreview_git_remote_pool_size").help("Number of contributor remotes in the remote pool.").register();
+	/**
+	 * Counter for the number of remotes evicted from the pool.
+	 */
+	private static final Counter evictions = Counter.builder().name("wikipreview_git_remote_pool_evictions").help("Number of remotes evicted from the remote pool.").register();
+	/**
+	 * Remotes that are never part of the pool and never evicted.
+	 */
+	private static final Set<String> PINNED_REMOTES = Set.of("origin", "ppy");
+	/**
+	 * The repository the remotes are configured in.
+	 */
+	private final Git git;
+	/**
+	 * The maximum number of contributor remotes in the pool.
+	 */
+	private final int capacity;
+	/**
+	 * Repository names of all remotes in the pool by remote name, in access order.
+	 */
+	private final LinkedHashMap<String, String> remotes = new LinkedHashMap<String, String>(16, 0.75F, true);
+	/**
+	 * Locks used to prevent simultaneous fetches from the same remote.
+	 */
+	private final Map<String, Object> fetchLocks = new ConcurrentHashMap<String, Object>();
+	/**
+	 * Number of open leases by remote name, remotes with open leases are never evicted.
+	 */
+	private final Map<String, Integer> leases = new HashMap<String, Integer>();
+	
+	/**
+	 * Constructs a new remote pool for the given repository. Remotes that are
+	 * already configured are added to the pool and evicted if the pool is full.
+	 * @param git The repository the remotes are configured in.
+	 * @param capacity The maximum number of contributor remotes to keep.
+	 * @throws GitAPIException When a git exception occurs.
+	 * @throws IOException When an IOException occurs.
+	 * @throws IllegalArgumentException When the capacity is less than 1.
+	 */
+	public RemotePool(Git git, int capacity) throws GitAPIException, IOException{
+		if(capacity < 1){
+			throw new IllegalArgumentException("Remote pool capacity must be at least 1, got " + capacity);
+		}
+		
+		this.git = git;
+		this.capacity = capacity;
+		
+		for(RemoteConfig remote : git.remoteList().call()){
+			if(!PINNED_REMOTES.contains(remote.getName()) && !remote.getURIs().isEmpty()){
+				remotes.put(remote.getName(), remote.getURIs().getFirst().getHumanishName());
+			}
+		}
+		
+		evict();
+	}
+	
+	/**
+	 * Makes sure a remote with the given name exists for the given repository and marks
+	 * it as most recently used. This may evict the least recently used remote. The remote
+	 * is not evicted until the returned lease is closed, so the lease has to stay open
+	 * for as long as the remote or its tracking refs are used.
+	 * @param name The name of the remote (the GitHub user or organisation).
+	 * @param repo The osu! wiki repository name.
+	 * @return The lease that has to be closed once the remote is no longer used.
+	 * @throws GitAPIException When a git exception occurs.
+	 * @throws IOException When an IOException occurs.
+	 */
+	public synchronized RemoteLease acquire(String name, String repo) throws GitAPIException, IOException{
+		if(PINNED_REMOTES.contains(name)){
+			return new RemoteLease(null);
+		}
+		
+		try{
+			String current = remotes.get(name);
+			if(current != null && !current.equals(repo)){
+				git.remoteRemove().setRemoteName(name).call();
+				current = null;
+			}
+			
+			if(current == null){
+				git.remoteAdd().setName(name).setUri(new URIish("git@github.com:" + name + "/" + repo + ".git")).call();
+				remotes.put(name, repo);
+			}
+		}catch(URISyntaxException ignore){
+			throw new InvalidRemoteException(name);
+		}
+		
+		leases.merge(name, 1, Integer::sum);
+		evict();
+		return new RemoteLease(name);
+	}
+	
+	/**
+	 * Gets the lock that has to be held while fetching from the given remote.
+	 * @param name The name of the remote.
+	 * @return The fetch lock for the remote.
+	 */
+	public Object getFetchLock(String name){
+		return fetchLocks.computeIfAbsent(name, _->new Object());
+	}
+	
+	/**
+	 * Gets the names of all contributor remotes in the pool.
+	 * @return The remotes in the pool, most recently used first.
+	 */
+	public synchronized List<String> getRemotes(){
+		List<String> names = new ArrayList<String>(remotes.keySet());
+		Collections.reverse(names);
+		return names;
+	}
+	
+	/**
+	 * Evicts least recently used remotes until the pool is within its capacity.
+	 * Remotes with open leases are skipped, so the pool can temporarily exceed
+	 * its capacity until those leases are closed.
+	 * @throws GitAPIException When a git exception occurs.
+	 * @throws IOException When an IOException occurs.
+	 */
+	private void evict() throws GitAPIException, IOException{
+		Iterator<Entry<String, String>> iter = remotes.entrySet().iterator();
+		while(remotes.size() > capacity && iter.hasNext()){
+			String name = iter.next().getKey();
+			if(leases.containsKey(name)){
+				continue;
+			}
+			
+			iter.remove();
+			git.remoteRemove().setRemoteName(name).call();
+			deleteTrackingRefs(name);
+			fetchLocks.remove(name);
+			evictions.inc();
+		}
+		
+		poolSize.set(remotes.size());
+	}
+	
+	/**
+	 * Deletes all remote tracking refs for the given remote.
+	 * @param name The name of the remote.
+	 * @throws IOException When an IOException occurs.
+	 */
+	private void deleteTrackingRefs(String name) throws IOException{
+		RefDatabase refs = git.getRepository().getRefDatabase();
+		BatchRefUpdate update = refs.newBatchUpdate();
+		for(Ref ref : refs.getRefsByPrefix(Constants.R_REMOTES + name + "/")){
+			update.addCommand(new ReceiveCommand(ref.getObjectId(), ObjectId.zeroId(), ref.getName(), ReceiveCommand.Type.DELETE));
+		}
+		
+		if(!update.getCommands().isEmpty()){
+			try(RevWalk walk = new RevWalk(git.getRepository())){
+				update.execute(walk, NullProgressMonitor.INSTANCE);
+			}
+		}
+	}
+	
+	/**
+	 * Lease on a remote in the pool that prevents it from being evicted while open.
+	 * @author Roan
+	 * @see RemotePool#acquire(String, String)
+	 */
+	public final class RemoteLease implements AutoCloseable{
+		/**
+		 * The name of the leased remote or null for remotes that are never evicted.
+		 */
+		private final String name;
+		
+		/**
+		 * Constructs a new lease, the lease count has to be incremented already.
+		 * @param name The name of the leased remote or null for remotes that are never evicted.
+		 */
+		private RemoteLease(String name){
+			this.name = name;
+		}
+		
+		/**
+		 * Releases the remote and evicts it if the pool is over capacity.
+		 * @throws GitAPIException When a git exception occurs.
+		 * @throws IOException When an IOException occurs.
+		 */
+		@Override
+		public void close() throws GitAPIException, IOException{
+			if(name != null){
+				synchronized(RemotePool.this){
+					leases.computeIfPresent(name, (_, count)->count == 1 ? null : count - 1);
+					evict();
+				}
+			}
+		}
+	}
+}
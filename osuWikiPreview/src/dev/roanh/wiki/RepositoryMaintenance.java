@@ -0,0 +1,231 @@
+/*
+ * osu! wiki preview site
+ * Copyright (C) 2023  Roan Hofland (roan@roanh.dev) and contributors.
+ * GitHub Repository: https://github.com/RoanH/osuWikiPreview
+ * GitLab Repository: https://git.roanh.dev/roan/osuwikipreview
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package dev.roanh.wiki;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.lib.ConfigConstants;
+import org.eclipse.jgit.lib.StoredConfig;
+
+import io.prometheus.metrics.core.datapoints.Timer;
+import io.prometheus.metrics.core.metrics.Gauge;
+import io.prometheus.metrics.core.metrics.Summary;
+
+import dev.roanh.isla.reporting.Priority;
+import dev.roanh.isla.reporting.Severity;
+
+/**
+ * Scheduler for maintenance of the shared osu! wiki repository. Maintenance
+ * repacks the repository with bitmaps, writes a commit-graph and prunes old
+ * unreachable objects. It runs when the repository has been idle for a while
+ * or when too many packs or loose objects pile up, but never while the
+ * repository is in use by a switch.
+ * @author Roan
+ */
+public class RepositoryMaintenance{
+	/**
+	 * Gauge with the number of pack files in the repository.
+	 */
+	private static final Gauge packFiles = Gauge.builder().name("wikipreview_git_pack_files").help("Number of pack files in the wiki repository.").register();
+	/**
+	 * Gauge with the number of loose objects in the repository.
+	 */
+	private static final Gauge looseObjects = Gauge.builder().name("wikipreview_git_loose_objects").help("Number of loose objects in the wiki repository.").register();
+	/**
+	 * Gauge with the total size of all loose objects in the repository.
+	 */
+	private static final Gauge looseObjectsSize = Gauge.builder().name("wikipreview_git_loose_objects_size").help("Size in bytes of all loose objects in the wiki repository.").register();
+	/**
+	 * Summary of the time it takes to run repository maintenance.
+	 */
+	private static final Summary maintenanceTime = Summary.builder().name("wikipreview_git_maintenance_time").help("Time spent running wiki repository maintenance.").register();
+	/**
+	 * Interval at which the repository is checked for required maintenance.
+	 */
+	private static final Duration CHECK_INTERVAL = Duration.ofMinutes(15L);
+	/**
+	 * Amount of time the repository has to be unused before it is considered idle.
+	 */
+	private static final Duration IDLE_TIME = Duration.ofMinutes(30L);
+	/**
+	 * Minimum amount of time between two maintenance runs while idle.
+	 */
+	private static final Duration IDLE_INTERVAL = Duration.ofDays(1L);
+	/**
+	 * Minimum age of unreachable objects before they are pruned.
+	 */
+	private static final Duration PRUNE_AGE = Duration.ofDays(1L);
+	/**
+	 * Number of pack files after which maintenance runs even if the repository is not idle.
+	 */
+	private static final long PACK_THRESHOLD = 50L;
+	/**
+	 * Number of loose objects after which maintenance runs even if the repository is not idle.
+	 */
+	private static final long LOOSE_OBJECT_THRESHOLD = 10000L;
+	/**
+	 * The repository to maintain.
+	 */
+	private final Git git;
+	/**
+	 * Lock shared by users of the repository and held exclusively during maintenance.
+	 */
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+	/**
+	 * Executor that runs the maintenance checks.
+	 */
+	private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+	/**
+	 * The instant the repository was last used.
+	 */
+	private volatile Instant lastUsed = Instant.now();
+	/**
+	 * The instant maintenance last completed, null if it did not run yet.
+	 */
+	private Instant lastRun = null;
+	
+	/**
+	 * Constructs a new maintenance scheduler for the given repository and enables
+	 * writing and reading a commit-graph and pack bitmaps for the repository.
+	 * @param git The repository to maintain.
+	 * @throws IOException When an IOException occurs.
+	 */
+	public RepositoryMaintenance(Git git) throws IOException{
+		this.git = git;
+		
+		StoredConfig config = git.getRepository().getConfig();
+		config.setBoolean(ConfigConstants.CONFIG_CORE_SECTION, null, ConfigConstants.CONFIG_COMMIT_GRAPH, true);
+		config.setBoolean(ConfigConstants.CONFIG_GC_SECTION, null, ConfigConstants.CONFIG_KEY_WRITE_COMMIT_GRAPH, true);
+		config.setBoolean(ConfigConstants.CONFIG_PACK_SECTION, null, ConfigConstants.CONFIG_KEY_BUILD_BITMAPS, true);
+		config.save();
+	}
+	
+	/**
+	 * Starts periodically checking if the repository requires maintenance.
+	 */
+	public void start(){
+		executor.scheduleWithFixedDelay(this::check, 0L, CHECK_INTERVAL.toMinutes(), TimeUnit.MINUTES);
+	}
+	
+	/**
+	 * Marks the repository as in use until the returned lease is closed.
+	 * Maintenance never runs while any lease is open, if maintenance is
+	 * running this method blocks until it completes.
+	 * @return The lease that has to be closed once the repository is no longer used.
+	 */
+	public Lease use(){
+		lock.readLock().lock();
+		lastUsed = Instant.now();
+		return new Lease();
+	}
+	
+	/**
+	 * Checks if the repository needs maintenance and runs it if so,
+	 * errors are logged. Also updates the repository metrics.
+	 */
+	private void check(){
+		try{
+			Properties stats = updateMetrics();
+			long packs = getStatistic(stats, "numberOfPackFiles");
+			long loose = getStatistic(stats, "numberOfLooseObjects");
+			
+			Instant now = Instant.now();
+			boolean idle = lastUsed.plus(IDLE_TIME).isBefore(now) && (lastRun == null || lastRun.plus(IDLE_INTERVAL).isBefore(now));
+			if((idle || packs >= PACK_THRESHOLD || loose >= LOOSE_OBJECT_THRESHOLD) && lock.writeLock().tryLock()){
+				try{
+					run();
+				}finally{
+					lock.writeLock().unlock();
+				}
+			}
+		}catch(Exception e){
+			//any exception escaping would cancel all future checks
+			Main.client.logError(e, "[RepositoryMaintenance] Failed to maintain the wiki repository", Severity.MINOR, Priority.LOW);
+		}
+	}
+	
+	/**
+	 * Runs maintenance, repacking the repository with bitmaps and a commit-graph
+	 * and pruning old unreachable objects. The caller is expected to hold the
+	 * exclusive lock on the repository.
+	 * @throws GitAPIException When a git exception occurs.
+	 */
+	private void run() throws GitAPIException{
+		try(Timer _ = maintenanceTime.startTimer()){
+			git.gc().setExpire(Instant.now().minus(PRUNE_AGE)).call();
+			lastRun = Instant.now();
+		}
+		
+		updateMetrics();
+	}
+	
+	/**
+	 * Updates the pack and loose object metrics for the repository.
+	 * @return The current repository statistics.
+	 * @throws GitAPIException When a git exception occurs.
+	 */
+	private Properties updateMetrics() throws GitAPIException{
+		Properties stats = git.gc().getStatistics();
+		packFiles.set(getStatistic(stats, "numberOfPackFiles"));
+		looseObjects.set(getStatistic(stats, "numberOfLooseObjects"));
+		looseObjectsSize.set(getStatistic(stats, "sizeOfLooseObjects"));
+		return stats;
+	}
+	
+	/**
+	 * Reads a single statistic from the repository statistics.
+	 * @param stats The repository statistics.
+	 * @param key The name of the statistic.
+	 * @return The value of the statistic.
+	 */
+	private static long getStatistic(Properties stats, String key){
+		return ((Number)stats.get(key)).longValue();
+	}
+	
+	/**
+	 * Lease on the repository that prevents maintenance from running while open.
+	 * @author Roan
+	 * @see RepositoryMaintenance#use()
+	 */
+	public final class Lease implements AutoCloseable{
+		
+		/**
+		 * Constructs a new lease, the shared lock has to be held already.
+		 */
+		private Lease(){
+		}
+		
+		@Override
+		public void close(){
+			lastUsed = Instant.now();
+			lock.readLock().unlock();
+		}
+	}
+}
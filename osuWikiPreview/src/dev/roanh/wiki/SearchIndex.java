@@ -0,0 +1,199 @@
+/*
+ * osu! wiki preview site
+ * Copyright (C) 2023  Roan Hofland (roan@roanh.dev) and contributors.
+ * GitHub Repository: https://github.com/RoanH/osuWikiPreview
+ * GitLab Repository: https://git.roanh.dev/roan/osuwikipreview
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package dev.roanh.wiki;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpRequest.BodyPublishers;
+import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.Semaphore;
+
+import com.google.gson.JsonParser;
+
+import io.prometheus.metrics.core.datapoints.Timer;
+import io.prometheus.metrics.core.metrics.Counter;
+import io.prometheus.metrics.core.metrics.Gauge;
+import io.prometheus.metrics.core.metrics.Summary;
+
+import dev.roanh.wiki.data.Instance;
+import dev.roanh.wiki.exception.WebException;
+
+/**
+ * The Elasticsearch wiki index of an osu! web instance. Wiki pages are indexed
+ * by osu! web itself when they are synced, so a switch keeps the index up to date
+ * by syncing exactly the changed and deleted pages. This class makes those changes
+ * searchable right away, reports on the index and runs throttled full reindexes.
+ * @author Roan
+ */
+public class SearchIndex{
+	/**
+	 * Summary of the time taken to update the wiki index by instance and mode.
+	 */
+	private static final Summary indexTime = Summary.builder().name("wikipreview_search_index_time").help("Time taken to update the wiki search index.").labelNames("instance", "mode").quantile(0.5D).quantile(0.9D).register();
+	/**
+	 * Counter for the number of wiki pages updated in the index by instance and change type.
+	 */
+	private static final Counter indexedPages = Counter.builder().name("wikipreview_search_indexed_pages").help("Number of wiki pages updated in the search index.").labelNames("instance", "change").register();
+	/**
+	 * Gauge with the number of documents in the wiki index by instance.
+	 */
+	private static final Gauge documents = Gauge.builder().name("wikipreview_search_documents").help("Number of documents in the wiki search index.").labelNames("instance").register();
+	/**
+	 * Name of the osu! web wiki index, prefixed with the prefix of the instance.
+	 */
+	private static final String WIKI_INDEX = "wiki_pages";
+	/**
+	 * Minimum time between full reindexes of the same instance.
+	 */
+	private static final Duration REINDEX_COOLDOWN = Duration.ofHours(1L);
+	/**
+	 * Maximum time a single Elasticsearch request is allowed to take.
+	 */
+	private static final Duration REQUEST_TIMEOUT = Duration.ofSeconds(30L);
+	/**
+	 * Permit for running a full reindex, only one instance reindexes at a time to limit cluster load.
+	 */
+	private static final Semaphore reindexPermit = new Semaphore(1, true);
+	/**
+	 * HTTP client used to talk to Elasticsearch.
+	 */
+	private static final HttpClient client = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(5L)).build();
+	/**
+	 * The instance this index belongs to.
+	 */
+	private final Instance instance;
+	/**
+	 * The base URL of the wiki index of the instance.
+	 */
+	private final String indexUrl;
+	/**
+	 * The instant the last full reindex of this instance completed, null if none ran yet.
+	 */
+	private volatile Instant lastReindex = null;
+	
+	/**
+	 * Constructs a new search index for the given instance.
+	 * @param config The application configuration.
+	 * @param instance The instance the index belongs to.
+	 */
+	public SearchIndex(Config config, Instance instance){
+		this.instance = instance;
+		indexUrl = config.getElasticsearchUrl() + "/" + instance.getElasticsearchPrefix() + WIKI_INDEX;
+	}
+	
+	/**
+	 * Records an incremental update of the index and makes the
+	 * changes searchable without waiting for the next index refresh.
+	 * @param time The time taken by osu! web to sync the changed pages.
+	 * @param indexed The number of pages that were added or changed.
+	 * @param deleted The number of pages that were deleted.
+	 * @throws WebException When the index could not be refreshed.
+	 */
+	public void recordUpdate(Duration time, int indexed, int deleted) throws WebException{
+		String label = String.valueOf(instance.getId());
+		indexedPages.labelValues(label, "indexed").inc(indexed);
+		indexedPages.labelValues(label, "deleted").inc(deleted);
+		
+		long start = System.nanoTime();
+		send("POST", "/_refresh");
+		indexTime.labelValues(label, "incremental").observe((time.toNanos() + System.nanoTime() - start) / 1.0E9D);
+		countDocuments();
+	}
+	
+	/**
+	 * Rebuilds the entire wiki index of the instance. Only one full reindex runs at a
+	 * time across all instances, other reindexes wait until the running one completes.
+	 * @param manager The manager of the instance to reindex.
+	 * @return The number of documents in the index after the reindex.
+	 * @throws WebException When the reindex failed or waiting for it was interrupted.
+	 * @see #getReindexCooldown()
+	 */
+	public long reindex(InstanceManager manager) throws WebException{
+		try{
+			reindexPermit.acquire();
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new WebException(e);
+		}
+		
+		try(Timer _ = indexTime.labelValues(String.valueOf(instance.getId()), "full").startTimer()){
+			manager.reindexWiki();
+			lastReindex = Instant.now();
+		}finally{
+			reindexPermit.release();
+		}
+		
+		return countDocuments();
+	}
+	
+	/**
+	 * Gets the time until a new full reindex of this instance is allowed.
+	 * @return The remaining cooldown, zero if a full reindex is allowed.
+	 */
+	public Duration getReindexCooldown(){
+		Instant last = lastReindex;
+		if(last == null){
+			return Duration.ZERO;
+		}
+		
+		Duration remaining = Duration.between(Instant.now(), last.plus(REINDEX_COOLDOWN));
+		return remaining.isNegative() ? Duration.ZERO : remaining;
+	}
+	
+	/**
+	 * Counts the number of documents in the wiki index.
+	 * @return The number of documents in the index.
+	 * @throws WebException When the documents could not be counted.
+	 */
+	public long countDocuments() throws WebException{
+		long count = JsonParser.parseString(send("GET", "/_count")).getAsJsonObject().get("count").getAsLong();
+		documents.labelValues(String.valueOf(instance.getId())).set(count);
+		return count;
+	}
+	
+	/**
+	 * Sends a request to the wiki index.
+	 * @param method The HTTP method.
+	 * @param path The path relative to the index.
+	 * @return The response body.
+	 * @throws WebException When the request failed.
+	 */
+	private String send(String method, String path) throws WebException{
+		try{
+			HttpRequest request = HttpRequest.newBuilder(URI.create(indexUrl + path)).timeout(REQUEST_TIMEOUT).method(method, BodyPublishers.noBody()).build();
+			HttpResponse<String> response = client.send(request, BodyHandlers.ofString());
+			if(response.statusCode() != 200){
+				throw new WebException("Elasticsearch request " + method + " " + path + " returned status " + response.statusCode() + ": " + response.body());
+			}
+			
+			return response.body();
+		}catch(IOException e){
+			throw new WebException(e);
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new WebException(e);
+		}
+	}
+}
@@ -0,0 +1,332 @@
+/*
+ * osu! wiki preview site
+ * Copyright (C) 2023  Roan Hofland (roan@roanh.dev) and contributors.
+ * GitHub Repository: https://github.com/RoanH/osuWikiPreview
+ * GitLab Repository: https://git.roanh.dev/roan/osuwikipreview
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package dev.roanh.wiki;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.StringJoiner;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.prometheus.metrics.core.metrics.Histogram;
+import io.prometheus.metrics.core.metrics.Summary;
+
+/**
+ * Record of the time spent in each stage of a single switch.
+ * @author Roan
+ */
+public class SwitchTimings{
+	/**
+	 * Histogram of the time spent in each switch stage by instance and outcome.
+	 */
+	private static final Histogram stageTime = Histogram.builder().name("wikipreview_switch_stage_time").help("Time spent in each stage of a switch.").labelNames("stage", "instance", "outcome").register();
+	/**
+	 * Summary of the number of database statements run per switch by instance.
+	 */
+	private static final Summary statementCount = Summary.builder().name("wikipreview_switch_statements").help("Number of database statements run during a switch.").labelNames("instance").register();
+	/**
+	 * The time spent in each stage that was run, stages can run concurrently.
+	 */
+	private final Map<Stage, Duration> stages = Collections.synchronizedMap(new EnumMap<Stage, Duration>(Stage.class));
+	/**
+	 * The failure message of each stage that failed without failing the entire switch.
+	 */
+	private final Map<Stage, String> failures = Collections.synchronizedMap(new EnumMap<Stage, String>(Stage.class));
+	/**
+	 * The nano time the switch started at.
+	 */
+	private final long start = System.nanoTime();
+	/**
+	 * The total wall clock time of the switch, null if the switch is still running.
+	 */
+	private Duration elapsed = null;
+	/**
+	 * The outcome of the switch, null if the switch is still running.
+	 */
+	private Outcome outcome = null;
+	/**
+	 * The number of database statements run during the switch.
+	 */
+	private final AtomicInteger statements = new AtomicInteger();
+	
+	/**
+	 * Starts timing the given stage, the time until the returned timer
+	 * is closed is added to the total time for the stage.
+	 * @param stage The stage to time.
+	 * @return The timer for the stage.
+	 */
+	public StageTimer time(Stage stage){
+		return new StageTimer(stage, System.nanoTime());
+	}
+	
+	/**
+	 * Records that a database statement was run during the switch.
+	 */
+	public void addStatement(){
+		statements.incrementAndGet();
+	}
+	
+	/**
+	 * Gets the number of database statements run during the switch.
+	 * @return The number of statements run.
+	 */
+	public int getStatements(){
+		return statements.get();
+	}
+	
+	/**
+	 * Gets the time spent in the given stage.
+	 * @param stage The stage to get the time for.
+	 * @return The time spent in the stage, zero if the stage did not run.
+	 */
+	public Duration get(Stage stage){
+		return stages.getOrDefault(stage, Duration.ZERO);
+	}
+	
+	/**
+	 * Records that the given stage failed without failing the entire switch.
+	 * @param stage The stage that failed.
+	 * @param cause The cause of the failure.
+	 */
+	public void fail(Stage stage, Throwable cause){
+		failures.putIfAbsent(stage, cause.getMessage() == null ? cause.getClass().getSimpleName() : cause.getMessage());
+	}
+	
+	/**
+	 * Gets the failure messages of all stages that failed without failing the entire switch.
+	 * @return The failure message of each failed stage.
+	 */
+	public Map<Stage, String> getFailures(){
+		synchronized(failures){
+			return new EnumMap<Stage, String>(failures);
+		}
+	}
+	
+	/**
+	 * Gets the total time taken by the switch. Once the switch completed this is
+	 * the wall clock time of the switch, before that it is the total time spent in
+	 * all stages. Since stages can run concurrently, the wall clock time can be
+	 * less than the sum of all stages.
+	 * @return The total time taken.
+	 */
+	public Duration getTotal(){
+		if(elapsed != null){
+			return elapsed;
+		}
+		
+		synchronized(stages){
+			return stages.values().stream().reduce(Duration.ZERO, Duration::plus);
+		}
+	}
+	
+	/**
+	 * Gets the outcome of the switch.
+	 * @return The outcome of the switch or null if not yet completed.
+	 */
+	public Outcome getOutcome(){
+		return outcome;
+	}
+	
+	/**
+	 * Completes this record with the given outcome and records the time of
+	 * all stages that ran and the number of statements in the switch metrics.
+	 * A successful switch in which some stages failed is recorded as partial.
+	 * @param instance The ID of the instance that was switched.
+	 * @param outcome The outcome of the switch.
+	 */
+	public void complete(int instance, Outcome outcome){
+		this.outcome = (outcome == Outcome.SUCCESS && !failures.isEmpty()) ? Outcome.PARTIAL : outcome;
+		elapsed = Duration.ofNanos(System.nanoTime() - start);
+		String id = String.valueOf(instance);
+		synchronized(stages){
+			for(Entry<Stage, Duration> stage : stages.entrySet()){
+				stageTime.labelValues(stage.getKey().getName(), id, this.outcome.getName()).observe(stage.getValue().toNanos() / 1_000_000_000.0D);
+			}
+		}
+		
+		statementCount.labelValues(id).observe(statements.get());
+	}
+	
+	@Override
+	public String toString(){
+		StringJoiner joiner = new StringJoiner(", ");
+		synchronized(stages){
+			for(Entry<Stage, Duration> stage : stages.entrySet()){
+				joiner.add(stage.getKey().getName() + " " + format(stage.getValue()));
+			}
+		}
+		
+		return joiner.toString();
+	}
+	
+	/**
+	 * Formats the given duration as seconds with a single decimal.
+	 * @param duration The duration to format.
+	 * @return The formatted duration.
+	 */
+	public static String format(Duration duration){
+		return String.format("%.1fs", duration.toMillis() / 1000.0D);
+	}
+	
+	/**
+	 * Timer for a single stage of a switch.
+	 * @author Roan
+	 * @see SwitchTimings#time(Stage)
+	 */
+	public final class StageTimer implements AutoCloseable{
+		/**
+		 * The stage being timed.
+		 */
+		private final Stage stage;
+		/**
+		 * The nano time the stage started at.
+		 */
+		private final long start;
+		
+		/**
+		 * Constructs a new stage timer.
+		 * @param stage The stage being timed.
+		 * @param start The nano time the stage started at.
+		 */
+		private StageTimer(Stage stage, long start){
+			this.stage = stage;
+			this.start = start;
+		}
+		
+		@Override
+		public void close(){
+			stages.merge(stage, Duration.ofNanos(System.nanoTime() - start), Duration::plus);
+		}
+	}
+	
+	/**
+	 * Stages of a switch.
+	 * @author Roan
+	 */
+	public enum Stage{
+		/**
+		 * Determining the current head of ppy/master.
+		 */
+		MASTER("master"),
+		/**
+		 * Fetching the ref to switch to.
+		 */
+		FETCH("fetch"),
+		/**
+		 * Merging ppy/master into the ref.
+		 */
+		MERGE("merge"),
+		/**
+		 * Committing an uploaded newspost.
+		 */
+		COMMIT("commit"),
+		/**
+		 * Pushing the preview branch.
+		 */
+		PUSH("push"),
+		/**
+		 * Running the osu! web wiki update.
+		 */
+		WIKI("wiki"),
+		/**
+		 * Computing the diff of the changes.
+		 */
+		DIFF("diff"),
+		/**
+		 * Removing changed news posts from the database.
+		 */
+		NEWS_CLEAR("news_clear"),
+		/**
+		 * Running the osu! web news sync.
+		 */
+		NEWS_SYNC("news_sync"),
+		/**
+		 * Fixing links in the changed news posts.
+		 */
+		NEWS_LINKS("news_links");
+		
+		/**
+		 * The name of the stage.
+		 */
+		private final String name;
+		
+		/**
+		 * Constructs a new stage.
+		 * @param name The name of the stage.
+		 */
+		private Stage(String name){
+			this.name = name;
+		}
+		
+		/**
+		 * Gets the name of this stage.
+		 * @return The name of this stage.
+		 */
+		public String getName(){
+			return name;
+		}
+	}
+	
+	/**
+	 * Possible outcomes of a switch.
+	 * @author Roan
+	 */
+	public enum Outcome{
+		/**
+		 * The switch was deployed to the instance.
+		 */
+		SUCCESS("success"),
+		/**
+		 * The switch was skipped because nothing changed since the last deploy.
+		 */
+		SKIPPED("skipped"),
+		/**
+		 * The switch was deployed to the instance but some stages failed.
+		 */
+		PARTIAL("partial"),
+		/**
+		 * The switch failed.
+		 */
+		FAILURE("failure");
+		
+		/**
+		 * The name of the outcome.
+		 */
+		private final String name;
+		
+		/**
+		 * Constructs a new outcome.
+		 * @param name The name of the outcome.
+		 */
+		private Outcome(String name){
+			this.name = name;
+		}
+		
+		/**
+		 * Gets the name of this outcome.
+		 * @return The name of this outcome.
+		 */
+		public String getName(){
+			return name;
+		}
+	}
+}
@@ -0,0 +1,185 @@
+/*
+ * osu! wiki preview site
+ * Copyright (C) 2023  Roan Hofland (roan@roanh.dev) and contributors.
+ * GitHub Repository: https://github.com/RoanH/osuWikiPreview
+ * GitLab Repository: https://git.roanh.dev/roan/osuwikipreview
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package dev.roanh.wiki;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.http.HttpClient;
+import java.net.http.HttpClient.Redirect;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import io.prometheus.metrics.core.metrics.Counter;
+import io.prometheus.metrics.core.metrics.Histogram;
+
+import dev.roanh.wiki.data.Instance;
+
+/**
+ * Crawler that requests the pages changed by a switch once so that the first
+ * reviewer to open them does not pay the cold render cost. Pages are requested
+ * on virtual threads with a bounded number of concurrent requests so that the
+ * Octane workers of the instance are not saturated.
+ * @author Roan
+ */
+public final class WarmupCrawler{
+	/**
+	 * Histogram of the time taken to render warmed up pages by instance.
+	 */
+	private static final Histogram renderTime = Histogram.builder().name("wikipreview_warmup_render_time").help("Time taken to render pages during the post switch warm-up.").labelNames("instance").register();
+	/**
+	 * Counter for warmed up pages by instance and result.
+	 */
+	private static final Counter pages = Counter.builder().name("wikipreview_warmup_pages").help("Number of pages requested during the post switch warm-up.").labelNames("instance", "result").register();
+	/**
+	 * Maximum number of pages requested at the same time.
+	 */
+	private static final int MAX_CONCURRENCY = 4;
+	/**
+	 * Maximum number of pages requested for a single switch.
+	 */
+	private static final int MAX_PAGES = 200;
+	/**
+	 * Render time after which a page is reported as slow.
+	 */
+	public static final Duration SLOW_THRESHOLD = Duration.ofSeconds(2L);
+	/**
+	 * Maximum time a single page request is allowed to take.
+	 */
+	private static final Duration REQUEST_TIMEOUT = Duration.ofSeconds(30L);
+	/**
+	 * Maximum time the entire crawl is allowed to take.
+	 */
+	private static final Duration CRAWL_TIMEOUT = Duration.ofMinutes(2L);
+	/**
+	 * HTTP client used to request pages.
+	 */
+	private static final HttpClient client = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(2L)).followRedirects(Redirect.NEVER).build();
+	
+	/**
+	 * Prevent instantiation.
+	 */
+	private WarmupCrawler(){
+	}
+	
+	/**
+	 * Requests all the given pages on the given instance.
+	 * @param instance The instance to request the pages on.
+	 * @param urls The public site URLs of the pages to request.
+	 * @return The results for all pages that were requested.
+	 */
+	public static List<PageResult> crawl(Instance instance, List<String> urls){
+		String label = String.valueOf(instance.getId());
+		Semaphore permits = new Semaphore(MAX_CONCURRENCY);
+		List<Future<PageResult>> tasks = new ArrayList<Future<PageResult>>();
+		List<PageResult> results = new ArrayList<PageResult>();
+		
+		try(ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()){
+			for(String url : urls.subList(0, Math.min(urls.size(), MAX_PAGES))){
+				tasks.add(executor.submit(()->{
+					permits.acquire();
+					try{
+						return request(instance, url);
+					}finally{
+						permits.release();
+					}
+				}));
+			}
+			
+			long deadline = System.nanoTime() + CRAWL_TIMEOUT.toNanos();
+			for(int i = 0; i < tasks.size(); i++){
+				Future<PageResult> task = tasks.get(i);
+				try{
+					results.add(task.get(Math.max(0L, deadline - System.nanoTime()), TimeUnit.NANOSECONDS));
+				}catch(TimeoutException | ExecutionException e){
+					task.cancel(true);
+					results.add(new PageResult(urls.get(i), 0, CRAWL_TIMEOUT));
+				}catch(InterruptedException e){
+					Thread.currentThread().interrupt();
+					tasks.forEach(t->t.cancel(true));
+					break;
+				}
+			}
+		}
+		
+		for(PageResult result : results){
+			pages.labelValues(label, result.isFailed() ? "failed" : (result.isSlow() ? "slow" : "ok")).inc();
+			if(!result.isFailed()){
+				renderTime.labelValues(label).observe(result.latency().toMillis() / 1000.0D);
+			}
+		}
+		
+		return results;
+	}
+	
+	/**
+	 * Requests a single page directly from the instance, bypassing the public proxy.
+	 * @param instance The instance to request the page on.
+	 * @param url The public site URL of the page.
+	 * @return The result of requesting the page.
+	 * @throws InterruptedException When the request was interrupted.
+	 */
+	private static PageResult request(Instance instance, String url) throws InterruptedException{
+		long start = System.nanoTime();
+		try{
+			URI local = new URI("http", null, "localhost", instance.getPort(), url.substring(instance.getSiteUrl().length()), null, null);
+			int status = client.send(HttpRequest.newBuilder(local).timeout(REQUEST_TIMEOUT).GET().build(), BodyHandlers.discarding()).statusCode();
+			return new PageResult(url, status, Duration.ofNanos(System.nanoTime() - start));
+		}catch(IOException | URISyntaxException e){
+			return new PageResult(url, 0, Duration.ofNanos(System.nanoTime() - start));
+		}
+	}
+	
+	/**
+	 * The result of requesting a single page.
+	 * @author Roan
+	 * @param url The public site URL of the page.
+	 * @param status The HTTP status of the response or 0 if no response was received.
+	 * @param latency The time taken to receive the response.
+	 */
+	public static final record PageResult(String url, int status, Duration latency){
+		
+		/**
+		 * Checks if the page failed to render.
+		 * @return True if no response or an error response was received.
+		 */
+		public boolean isFailed(){
+			return status == 0 || status >= 400;
+		}
+		
+		/**
+		 * Checks if the page rendered slowly.
+		 * @return True if rendering the page took longer than the slow threshold.
+		 */
+		public boolean isSlow(){
+			return latency.compareTo(SLOW_THRESHOLD) > 0;
+		}
+	}
+}
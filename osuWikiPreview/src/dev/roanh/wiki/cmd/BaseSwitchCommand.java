@@ -21,12 +21,17 @@ package dev.roanh.wiki.cmd;
 
 import java.io.IOException;
 import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Objects;
 import java.util.Optional;
 
 import org.eclipse.jgit.api.errors.GitAPIException;
 import org.eclipse.jgit.api.errors.InvalidRemoteException;
 import org.eclipse.jgit.api.errors.JGitInternalException;
 import org.eclipse.jgit.diff.DiffEntry;
+import org.eclipse.jgit.diff.DiffEntry.ChangeType;
 import org.eclipse.jgit.errors.NoRemoteRepositoryException;
 
 import net.dv8tion.jda.api.EmbedBuilder;
@@ -41,9 +46,15 @@ import dev.roanh.isla.reporting.Priority;
 import dev.roanh.isla.reporting.Severity;
 import dev.roanh.wiki.InstanceStatus;
 import dev.roanh.wiki.Main;
+import dev.roanh.wiki.MainDatabase;
 import dev.roanh.wiki.OsuWeb;
 import dev.roanh.wiki.OsuWiki;
 import dev.roanh.wiki.OsuWiki.SwitchResult;
+import dev.roanh.wiki.SwitchTimings;
+import dev.roanh.wiki.SwitchTimings.Outcome;
+import dev.roanh.wiki.SwitchTimings.Stage;
+import dev.roanh.wiki.WarmupCrawler;
+import dev.roanh.wiki.WarmupCrawler.PageResult;
 import dev.roanh.wiki.data.Instance;
 import dev.roanh.wiki.data.PullRequest;
 import dev.roanh.wiki.data.WebState;
@@ -61,6 +72,10 @@ public abstract class BaseSwitchCommand extends WebCommand{
 	 * Default amount of time automatic claims last.
 	 */
 	private static final Duration DEFAULT_CLAIM_TIME = Duration.ofHours(1L);
+	/**
+	 * Maximum number of slow or failing pages to list in the switch result embed.
+	 */
+	private static final int MAX_FLAGGED_PAGES = 10;
 	
 	/**
 	 * Constructs a new base switch command.
@@ -137,7 +152,7 @@ public abstract class BaseSwitchCommand extends WebCommand{
 	 * @throws MergeConflictException When a merge is requested which results in a conflict.
 	 */
 	protected void switchBranch(CommandEvent event, WebState state, OsuWeb web, CommandMap args) throws MergeConflictException, GitAPIException, IOException, DBException, WebException{
-		switchBranch(event, state, web, OsuWiki.switchBranch(state.getNamespace(), state.getRepository(), state.getRef(), state.hasMaster(), web));
+		switchBranch(event, state, web, OsuWiki.switchBranch(state, web));
 	}
 
 	/**
@@ -149,19 +164,58 @@ public abstract class BaseSwitchCommand extends WebCommand{
 	 * @throws DBException When a database exception occurs.
 	 */
 	private void switchBranch(CommandEvent event, WebState state, OsuWeb web, SwitchResult diff) throws DBException{
+		state.refreshClaim(DEFAULT_CLAIM_TIME);
+		event.replyEmbeds(completeSwitch(state, web, diff));
+	}
+	
+	/**
+	 * Completes a switch of the active preview branch by recording the new
+	 * state of the given instance and applying any post switch actions.
+	 * The switch result is only reported once the instance serves requests and
+	 * the pages changed since the previous deploy were requested once to warm up
+	 * the instance. Both are skipped if the switch did not deploy anything.
+	 * @param state The state that was switched to on the given web instance.
+	 * @param web The osu! web instance that was updated.
+	 * @param diff The git diff of the current state against ppy/master.
+	 * @return The switch result embed to show.
+	 * @throws DBException When a database exception occurs.
+	 */
+	public static final MessageEmbed completeSwitch(WebState state, OsuWeb web, SwitchResult diff) throws DBException{
 		if(!state.isInternalBranch()){
 			retrievePullRequest(state.getNamespace(), state.getRepository(), diff.head()).ifPresent(state::setPullRequest);
 		}
 		
-		state.refreshClaim(DEFAULT_CLAIM_TIME);
 		web.setCurrentState(state);
+		try{
+			MainDatabase.saveSwitchTimings(web.getInstance().getId(), diff.timings());
+		}catch(DBException e){
+			//timings are only used for analysis and should not fail the switch
+			Main.client.logError(e, "[BaseSwitchCommand] Failed to save switch timings", Severity.MINOR, Priority.LOW, Detail.of("Instance", web.getInstance().getId()));
+		}
 
 		if(state.hasRedate() && diff.hasNews()){
 			web.redateNews();
 		}
 
-		event.replyEmbeds(createEmbed(diff, state, web));
 		InstanceStatus.updateOverview();
+		if(diff.timings().getOutcome() == Outcome.SKIPPED){
+			//the instance was not touched so there is nothing to wait for or warm up
+			return createEmbed(diff, state, web, true, List.of());
+		}
+		
+		boolean ready = web.awaitReady();
+		List<PageResult> warmup = ready ? WarmupCrawler.crawl(web.getInstance(), getChangedPages(diff, web.getInstance())) : List.of();
+		return createEmbed(diff, state, web, ready, warmup);
+	}
+	
+	/**
+	 * Gets the site URLs of all pages that were changed or added since the previous deploy.
+	 * @param diff The git diff of the current state against ppy/master.
+	 * @param instance The instance to get the page URLs for.
+	 * @return The site URLs of all changed pages.
+	 */
+	private static final List<String> getChangedPages(SwitchResult diff, Instance instance){
+		return diff.changed().stream().filter(item->item.getChangeType() != ChangeType.DELETE).map(item->resolveSitePath(item.getNewPath(), instance)).filter(Objects::nonNull).toList();
 	}
 	
 	/**
@@ -169,9 +223,11 @@ public abstract class BaseSwitchCommand extends WebCommand{
 	 * @param diff The git diff of the current state against ppy/master.
 	 * @param state The new osu! web instance state.
 	 * @param web The osu! web instance that was updated.
+	 * @param ready True if the instance is serving requests.
+	 * @param warmup The results of warming up the changed pages.
 	 * @return The constructed switch result embed.
 	 */
-	private static final MessageEmbed createEmbed(SwitchResult diff, WebState state, OsuWeb web){
+	private static final MessageEmbed createEmbed(SwitchResult diff, WebState state, OsuWeb web, boolean ready, List<PageResult> warmup){
 		String footer = "HEAD: " + diff.head();
 		if(state.hasRedate() && diff.hasNews()){
 			footer += state.hasMaster() ? " (with redate & master)" : " (with redate)";
@@ -179,6 +235,11 @@ public abstract class BaseSwitchCommand extends WebCommand{
 			footer += " (with master)";
 		}
 		
+		footer += "\nTook " + SwitchTimings.format(diff.timings().getTotal()) + " (" + diff.timings() + ")";
+		if(!warmup.isEmpty()){
+			footer += "\nWarmed up " + warmup.size() + (warmup.size() == 1 ? " page" : " pages");
+		}
+		
 		EmbedBuilder embed = new EmbedBuilder();
 		embed.setColor(THEME_COLOR);
 		embed.setAuthor("Ref: " + state.getNamespaceWithRef(), state.getGitHubTree(), null);
@@ -195,8 +256,50 @@ public abstract class BaseSwitchCommand extends WebCommand{
 			desc.append(").\n");
 		}
 		
+		if(!ready){
+			desc.append("**The instance is still starting, pages may not load yet.**\n");
+		}
+		
+		List<PageResult> flagged = warmup.stream().filter(page->page.isFailed() || page.isSlow()).toList();
+		if(!flagged.isEmpty()){
+			desc.append("**Slow or failing pages:**\n");
+			for(PageResult page : flagged.subList(0, Math.min(flagged.size(), MAX_FLAGGED_PAGES))){
+				desc.append("- [");
+				desc.append(MarkdownSanitizer.escape(page.url().substring(web.getInstance().getSiteUrl().length())));
+				desc.append("](");
+				desc.append(page.url());
+				desc.append("): ");
+				if(page.isFailed()){
+					desc.append(page.status() == 0 ? "no response" : ("HTTP " + page.status()));
+				}else{
+					desc.append("took ");
+					desc.append(SwitchTimings.format(page.latency()));
+				}
+				
+				desc.append("\n");
+			}
+			
+			if(flagged.size() > MAX_FLAGGED_PAGES){
+				desc.append("_and ");
+				desc.append(flagged.size() - MAX_FLAGGED_PAGES);
+				desc.append(" more_\n");
+			}
+		}
+		
+		Map<Stage, String> failures = diff.timings().getFailures();
+		if(!failures.isEmpty()){
+			desc.append("**Some stages failed, the preview may be incomplete:**\n");
+			for(Entry<Stage, String> failure : failures.entrySet()){
+				desc.append("- ");
+				desc.append(failure.getKey().getName());
+				desc.append(": ");
+				desc.append(MarkdownSanitizer.escape(failure.getValue()));
+				desc.append("\n");
+			}
+		}
+		
 		for(DiffEntry item : diff.diff()){
-			String path = resolveSitePath(item.getNewPath(), web.getInstance());
+			String path = item.getChangeType() == ChangeType.DELETE ? null : resolveSitePath(item.getNewPath(), web.getInstance());
 			if(path != null){
 				int len = desc.length();
 				desc.append("- [");
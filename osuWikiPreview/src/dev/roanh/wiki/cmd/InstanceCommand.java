@@ -20,6 +20,9 @@
 package dev.roanh.wiki.cmd;
 
 import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
 
 import net.dv8tion.jda.api.Permission;
 
@@ -32,8 +35,12 @@ import dev.roanh.isla.command.slash.CommandMap;
 import dev.roanh.isla.permission.CommandPermission;
 import dev.roanh.isla.reporting.Priority;
 import dev.roanh.isla.reporting.Severity;
+import dev.roanh.wiki.ArtisanWorker;
 import dev.roanh.wiki.InstanceManager;
+import dev.roanh.wiki.Main;
 import dev.roanh.wiki.OsuWeb;
+import dev.roanh.wiki.SearchIndex;
+import dev.roanh.wiki.SwitchTimings;
 import dev.roanh.wiki.data.Instance;
 import dev.roanh.wiki.exception.WebException;
 
@@ -61,6 +68,12 @@ public class InstanceCommand extends CommandGroup{
 		
 		registerCommand(WebCommand.of("restart", "Restarts the entire osu! web instance.", CommandPermission.DEV, this::restartInstance));
 		
+		registerCommand(WebCommand.of("reindex", "Rebuilds the entire wiki search index of this instance.", Main.PERMISSION, this::reindexSearch));
+		
+		Command benchmark = WebCommand.of("benchmark", "Compares artisan command latency of the worker against a fresh tinker session.", CommandPermission.DEV, this::benchmarkArtisan);
+		benchmark.addOptionInt("runs", "The number of commands to run in each mode.", 1, 20);
+		registerCommand(benchmark);
+		
 		Command update = WebCommand.of("update", "Update to a new osu! web release.", CommandPermission.DEV, this::updateInstance);
 		update.addOptionString("tag", "The new osu! web docker image tag.");
 		registerCommand(update);
@@ -81,6 +94,7 @@ public class InstanceCommand extends CommandGroup{
 	 */
 	private void restartInstance(OsuWeb web, CommandMap args, CommandEvent event){
 		try{
+			web.clearDeployment();
 			web.stop();
 			web.start();
 			event.reply("osu! web instance succesfully restarted.");
@@ -90,6 +104,85 @@ public class InstanceCommand extends CommandGroup{
 		}
 	}
 
+	/**
+	 * Rebuilds the entire wiki search index of an instance, at most once per cooldown period.
+	 * @param web The instance to reindex.
+	 * @param args The command arguments.
+	 * @param event The command event.
+	 */
+	private void reindexSearch(OsuWeb web, CommandMap args, CommandEvent event){
+		SearchIndex search = web.getSearchIndex();
+		Duration cooldown = search.getReindexCooldown();
+		if(!cooldown.isZero()){
+			event.reply("The search index of this instance was rebuilt recently, please try again in " + SwitchTimings.format(cooldown) + ".");
+			return;
+		}
+		
+		try{
+			long documents = search.reindex(web.getManager());
+			event.reply("Wiki search index rebuilt successfully with " + documents + " documents.");
+		}catch(WebException e){
+			event.logError(e, "[InstanceCommand] Failed to rebuild the wiki search index", Severity.MINOR, Priority.MEDIUM);
+			event.internalError();
+		}
+	}
+	
+	/**
+	 * Benchmarks the latency of a trivial artisan command when run through the
+	 * persistent artisan worker and when run in a fresh tinker session.
+	 * @param web The instance to benchmark.
+	 * @param args The command arguments.
+	 * @param event The command event.
+	 */
+	private void benchmarkArtisan(OsuWeb web, CommandMap args, CommandEvent event){
+		final int runs = args.get("runs").getAsInt();
+		ArtisanWorker worker = web.getArtisanWorker();
+		
+		try{
+			//first command boots the worker if it was not running yet
+			long start = System.nanoTime();
+			worker.run("null");
+			Duration boot = Duration.ofNanos(System.nanoTime() - start);
+			
+			List<Duration> warm = new ArrayList<Duration>();
+			List<Duration> cold = new ArrayList<Duration>();
+			for(int i = 0; i < runs; i++){
+				start = System.nanoTime();
+				worker.run("null");
+				warm.add(Duration.ofNanos(System.nanoTime() - start));
+				
+				start = System.nanoTime();
+				worker.runCold("null");
+				cold.add(Duration.ofNanos(System.nanoTime() - start));
+			}
+			
+			event.reply(
+				"Artisan latency over " + runs + " runs (first worker command " + SwitchTimings.format(boot) + "):\n" +
+				"- Worker: " + summarise(warm) + "\n" +
+				"- Tinker: " + summarise(cold)
+			);
+		}catch(WebException e){
+			event.logError(e, "[InstanceCommand] Failed to benchmark artisan", Severity.MINOR, Priority.MEDIUM, args);
+			event.internalError();
+		}
+	}
+	
+	/**
+	 * Summarises the given latency measurements.
+	 * @param samples The latency measurements.
+	 * @return A summary with the median, mean and maximum latency.
+	 */
+	private static String summarise(List<Duration> samples){
+		List<Duration> sorted = samples.stream().sorted().toList();
+		Duration total = sorted.stream().reduce(Duration.ZERO, Duration::plus);
+		return String.format(
+			"median %dms, mean %dms, max %dms",
+			sorted.get(sorted.size() / 2).toMillis(),
+			total.toMillis() / sorted.size(),
+			sorted.getLast().toMillis()
+		);
+	}
+	
 	/**
 	 * Generates a (new) environment configuration file an instance.
 	 * @param web The instance to write a new environment config for.
@@ -130,6 +223,7 @@ public class InstanceCommand extends CommandGroup{
 	 */
 	private void recreateContainer(OsuWeb web, CommandMap args, CommandEvent event){
 		try{
+			web.clearDeployment();
 			InstanceManager manager = web.getManager();
 			manager.deleteInstanceContainer();
 			manager.runInstance();
@@ -148,6 +242,7 @@ public class InstanceCommand extends CommandGroup{
 	 */
 	private void updateInstance(OsuWeb web, CommandMap args, CommandEvent event){
 		try{
+			web.clearDeployment();
 			InstanceManager manager = web.getManager();
 			manager.updateInstance(args.get("tag").getAsString());
 			manager.runInstance();
@@ -50,6 +50,11 @@ public class MergeMasterCommand extends BaseSwitchCommand{
 		if(state == null){
 			event.reply("No checked out ref found.");
 		}else{
+			if(!state.hasMaster()){
+				//the last deploy did not include ppy/master
+				web.clearDeployment();
+			}
+			
 			switchBranch(event, state.withMaster(), web, args);
 		}
 	}
@@ -0,0 +1,159 @@
+/*
+ * osu! wiki preview site
+ * Copyright (C) 2023  Roan Hofland (roan@roanh.dev) and contributors.
+ * GitHub Repository: https://github.com/RoanH/osuWikiPreview
+ * GitLab Repository: https://git.roanh.dev/roan/osuwikipreview
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package dev.roanh.wiki.cmd;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Optional;
+
+import net.dv8tion.jda.api.EmbedBuilder;
+
+import dev.roanh.isla.command.slash.CommandEvent;
+import dev.roanh.isla.command.slash.CommandGroup;
+import dev.roanh.isla.command.slash.CommandMap;
+import dev.roanh.wiki.JobQueue;
+import dev.roanh.wiki.JobQueue.Job;
+import dev.roanh.wiki.Main;
+import dev.roanh.wiki.OsuWeb;
+import dev.roanh.wiki.OutputBuffer;
+import dev.roanh.wiki.SwitchTimings;
+
+/**
+ * Command to inspect and manage the job queue of an osu! web instance.
+ * @author Roan
+ */
+public class QueueCommand extends CommandGroup{
+	/**
+	 * The maximum number of output lines to show when tailing a job.
+	 */
+	private static final int TAIL_LINES = 30;
+	/**
+	 * The maximum number of output characters to show when tailing a job, Discord messages are limited to 2000.
+	 */
+	private static final int TAIL_LENGTH = 1800;
+
+	/**
+	 * Constructs a new queue command.
+	 */
+	public QueueCommand(){
+		super("queue", "Inspect and manage the job queue of this instance.");
+		
+		registerCommand(WebCommand.of("status", "Shows the running and waiting jobs for this instance.", Main.PERMISSION, false, this::showStatus));
+		
+		registerCommand(WebCommand.of("tail", "Shows the most recent output of the running or last finished job.", Main.PERMISSION, false, this::tailJob));
+		
+		WebCommand cancel = WebCommand.of("cancel", "Cancels a job that is waiting in the queue or running.", Main.PERMISSION, false, this::cancelJob);
+		cancel.addOptionInt("job", "The ID of the job to cancel.", 1, Integer.MAX_VALUE);
+		registerCommand(cancel);
+	}
+	
+	/**
+	 * Shows the running and waiting jobs for an instance.
+	 * @param web The osu! web instance.
+	 * @param args The command arguments.
+	 * @param event The command event.
+	 */
+	private void showStatus(OsuWeb web, CommandMap args, CommandEvent event){
+		JobQueue queue = web.getJobQueue();
+		Optional<Job> running = queue.getRunningJob();
+		List<Job> waiting = queue.getWaitingJobs();
+		
+		EmbedBuilder embed = new EmbedBuilder();
+		embed.setColor(WebCommand.THEME_COLOR);
+		embed.setTitle("Job Queue");
+		
+		StringBuilder desc = embed.getDescriptionBuilder();
+		if(running.isEmpty()){
+			desc.append("No job is currently running.\n");
+		}else{
+			desc.append("Running: `");
+			desc.append(running.get().getName());
+			desc.append("` (job ");
+			desc.append(running.get().getId());
+			desc.append(")\n");
+		}
+		
+		if(waiting.isEmpty()){
+			desc.append("No jobs are waiting.");
+		}
+		
+		for(Job job : waiting){
+			desc.append(queue.getPosition(job));
+			desc.append(". `");
+			desc.append(job.getName());
+			desc.append("` (job ");
+			desc.append(job.getId());
+			desc.append(", waiting ");
+			desc.append(SwitchTimings.format(Duration.between(job.getSubmittedAt(), Instant.now())));
+			desc.append(", estimated start in ");
+			desc.append(SwitchTimings.format(queue.getEstimatedWait(job)));
+			desc.append(")\n");
+		}
+		
+		event.replyEmbeds(embed.build());
+	}
+	
+	/**
+	 * Shows the most recent output of the running or last finished job of an instance.
+	 * @param web The osu! web instance.
+	 * @param args The command arguments.
+	 * @param event The command event.
+	 */
+	private void tailJob(OsuWeb web, CommandMap args, CommandEvent event){
+		JobQueue queue = web.getJobQueue();
+		Optional<Job> job = queue.getRunningJob().or(queue::getLastJob);
+		if(job.isEmpty()){
+			event.reply("No job has run on this instance yet.");
+			return;
+		}
+		
+		OutputBuffer output = job.get().getOutput();
+		StringBuilder tail = new StringBuilder();
+		List<String> lines = output.tail(TAIL_LINES);
+		for(int i = lines.size() - 1; i >= 0; i--){
+			String line = lines.get(i);
+			if(tail.length() + line.length() + 1 > TAIL_LENGTH){
+				break;
+			}
+			
+			tail.insert(0, line + "\n");
+		}
+		
+		event.reply(
+			"Output of job " + job.get().getId() + " (`" + job.get().getName() + "`, " + output.getTotalLines() + " lines total):\n" +
+			(tail.isEmpty() ? "No output." : ("```\n" + tail.toString().replace("```", "'''") + "```"))
+		);
+	}
+	
+	/**
+	 * Cancels a waiting or running job for an instance.
+	 * @param web The osu! web instance.
+	 * @param args The command arguments.
+	 * @param event The command event.
+	 */
+	private void cancelJob(OsuWeb web, CommandMap args, CommandEvent event){
+		if(web.getJobQueue().cancel(args.get("job").getAsInt())){
+			event.reply("Job cancelled successfully.");
+		}else{
+			event.reply("No waiting or running job with the given ID exists, it may already have finished.");
+		}
+	}
+}
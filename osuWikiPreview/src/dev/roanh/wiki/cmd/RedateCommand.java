@@ -44,6 +44,7 @@ public class RedateCommand extends WebCommand{
 	@Override
 	public void executeWeb(OsuWeb web, CommandMap args, CommandEvent event){
 		try{
+			web.clearDeployment();
 			web.redateNews();
 			WebState state = web.getCurrentState();
 			if(state != null){
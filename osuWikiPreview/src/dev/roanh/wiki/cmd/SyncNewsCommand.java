@@ -44,6 +44,7 @@ public class SyncNewsCommand extends WebCommand{
 	@Override
 	public void executeWeb(OsuWeb web, CommandMap args, CommandEvent event){
 		try{
+			web.clearDeployment();
 			web.clearNewsDatabase();
 			web.syncAllNews();
 			event.reply("osu! web news database cleared and re-synced succesfully.");
@@ -20,6 +20,7 @@
 package dev.roanh.wiki.cmd;
 
 import java.awt.Color;
+import java.util.Optional;
 
 import dev.roanh.isla.command.CommandScope;
 import dev.roanh.isla.command.slash.Command;
@@ -29,7 +30,10 @@ import dev.roanh.isla.permission.CommandPermission;
 import dev.roanh.isla.reporting.Priority;
 import dev.roanh.isla.reporting.Severity;
 import dev.roanh.wiki.InstanceManager;
+import dev.roanh.wiki.JobQueue;
+import dev.roanh.wiki.JobQueue.Job;
 import dev.roanh.wiki.OsuWeb;
+import dev.roanh.wiki.SwitchTimings;
 
 /**
  * Abstract base class for commands that affect an osu! web instance.
@@ -40,15 +44,37 @@ public abstract class WebCommand extends Command{
 	 * Theme color used in various embeds.
 	 */
 	public static final Color THEME_COLOR = new Color(255, 142, 230);
+	/**
+	 * The name of this command, used as the job name in the job queue.
+	 */
+	private final String name;
+	/**
+	 * Whether this command runs through the job queue of the instance.
+	 */
+	private final boolean queued;
 	
 	/**
-	 * Constructs a new web command.
+	 * Constructs a new web command that runs through the job queue of the instance.
 	 * @param name The name of this command.
 	 * @param description The description of this command.
 	 * @param permission The permission the user needs to be allowed to execute this command.
 	 */
 	protected WebCommand(String name, String description, CommandPermission permission){
+		this(name, description, permission, true);
+	}
+	
+	/**
+	 * Constructs a new web command.
+	 * @param name The name of this command.
+	 * @param description The description of this command.
+	 * @param permission The permission the user needs to be allowed to execute this command.
+	 * @param queued True if the command has to run through the job queue of the instance,
+	 *        false if it can run immediately alongside other commands.
+	 */
+	protected WebCommand(String name, String description, CommandPermission permission, boolean queued){
 		super(name, description, permission, CommandScope.GUILD);
+		this.name = name;
+		this.queued = queued;
 	}
 
 	@Override
@@ -60,22 +86,45 @@ public abstract class WebCommand extends Command{
 		}
 		
 		original.deferReply(event->{
-			try{
-				if(web.tryLock()){
-					event.reply("Already running a task, please try again later.");
-					return;
-				}
-				
-				executeWeb(web, args, event);
-			}catch(Exception e){
-				event.logError(e, "[WebCommand] Default failure", Severity.MAJOR, Priority.HIGH, args);
-				event.internalError();
-			}finally{
-				web.unlock();
+			if(!queued){
+				run(web, args, event);
+				return;
+			}
+			
+			JobQueue queue = web.getJobQueue();
+			Optional<Job> job = queue.submit(name, ()->run(web, args, event), ()->event.reply("This command was cancelled before it ran."));
+			if(job.isEmpty()){
+				event.reply("The job queue for this instance is full, please try again later.");
+				return;
+			}
+			
+			int position = queue.getPosition(job.get());
+			if(position > 0){
+				event.reply("Queued as job " + job.get().getId() + " at position " + position + ", estimated wait " + SwitchTimings.format(queue.getEstimatedWait(job.get())) + ".");
 			}
 		});
 	}
 	
+	/**
+	 * Executes this command for the given instance, logging any exceptions.
+	 * @param web The osu! web instance to execute for.
+	 * @param args The passed command arguments.
+	 * @param event The command event.
+	 */
+	private void run(OsuWeb web, CommandMap args, CommandEvent event){
+		try{
+			executeWeb(web, args, event);
+		}catch(Exception e){
+			if(JobQueue.isCancelled()){
+				event.reply("This command was cancelled while it was running.");
+				return;
+			}
+			
+			event.logError(e, "[WebCommand] Default failure", Severity.MAJOR, Priority.HIGH, args);
+			event.internalError();
+		}
+	}
+	
 	/**
 	 * Executes this command for the given instance.
 	 * @param web The osu! web instance to execute for.
@@ -93,7 +142,20 @@ public abstract class WebCommand extends Command{
 	 * @return The newly constructed command.
 	 */
 	public static WebCommand of(String name, String description, CommandPermission permission, WebCommandRunnable handler){
-		return new WebCommand(name, description, permission){
+		return of(name, description, permission, true, handler);
+	}
+	
+	/**
+	 * Constructs a new web command.
+	 * @param name The name of the command.
+	 * @param description The description for the command.
+	 * @param permission The permission required for the command.
+	 * @param queued True if the command has to run through the job queue of the instance.
+	 * @param handler The handler to invoke when running the command.
+	 * @return The newly constructed command.
+	 */
+	public static WebCommand of(String name, String description, CommandPermission permission, boolean queued, WebCommandRunnable handler){
+		return new WebCommand(name, description, permission, queued){
 			
 			@Override
 			public void executeWeb(OsuWeb web, CommandMap args, CommandEvent event){
@@ -25,7 +25,10 @@ import java.time.Duration;
 import java.time.Instant;
 import java.util.Optional;
 
+import org.eclipse.jgit.lib.ObjectId;
+
 import dev.roanh.wiki.OsuWeb;
+import dev.roanh.wiki.OsuWiki.SwitchResult;
 import dev.roanh.wiki.github.obj.GitHubPullRequest;
 
 /**
@@ -64,6 +67,18 @@ public class WebState{
 	 * The instant the web instance becomes available for automatic claiming.
 	 */
 	private Instant available;
+	/**
+	 * The ppy/master commit that was last deployed for this state, not persisted.
+	 */
+	private ObjectId deployedMaster = null;
+	/**
+	 * The ref commit that was last deployed for this state, not persisted.
+	 */
+	private ObjectId deployedHead = null;
+	/**
+	 * The result of the last deploy of this state, not persisted.
+	 */
+	private SwitchResult deployedResult = null;
 	
 	/**
 	 * Constructs a new web state from the given result set.
@@ -208,6 +223,51 @@ public class WebState{
 		available = Instant.now().plus(duration);
 	}
 	
+	/**
+	 * Records the commits that were last deployed to the web instance for this state.
+	 * @param master The ppy/master commit that was deployed.
+	 * @param head The commit the ref pointed to when it was deployed.
+	 * @param result The result of the deploy.
+	 * @see #getDeployment(ObjectId, ObjectId)
+	 */
+	public void setDeployment(ObjectId master, ObjectId head, SwitchResult result){
+		deployedMaster = master;
+		deployedHead = head;
+		deployedResult = result;
+	}
+	
+	/**
+	 * Gets the result of the last deploy of this state if it was
+	 * made for the exact same ppy/master and ref commits.
+	 * @param master The current ppy/master commit.
+	 * @param head The current commit for the ref.
+	 * @return The result of the last deploy if nothing changed since.
+	 * @see #setDeployment(ObjectId, ObjectId, SwitchResult)
+	 */
+	public Optional<SwitchResult> getDeployment(ObjectId master, ObjectId head){
+		return deployedResult != null && master.equals(deployedMaster) && head.equals(deployedHead) ? Optional.of(deployedResult) : Optional.empty();
+	}
+	
+	/**
+	 * Gets the result of the last deploy of this state regardless of the commits it was made for.
+	 * @return The result of the last deploy if known.
+	 * @see #setDeployment(ObjectId, ObjectId, SwitchResult)
+	 */
+	public Optional<SwitchResult> getLastDeployment(){
+		return Optional.ofNullable(deployedResult);
+	}
+	
+	/**
+	 * Checks if the given state previews the same content as this state, meaning
+	 * it shows the same ref from the same repository and also agrees on whether
+	 * ppy/master should be merged in.
+	 * @param other The state to compare with.
+	 * @return True if both states preview the same content.
+	 */
+	public boolean hasSameTarget(WebState other){
+		return namespace.equals(other.namespace) && repo.equals(other.repo) && ref.equals(other.ref) && master == other.master;
+	}
+	
 	/**
 	 * Returns a new web state with the redate flag set to true.
 	 * @return This web state with the redate flag set to true.
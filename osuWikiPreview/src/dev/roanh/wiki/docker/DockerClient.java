@@ -0,0 +1,825 @@
+/*
+ * osu! wiki preview site
+ * Copyright (C) 2023  Roan Hofland (roan@roanh.dev) and contributors.
+ * GitHub Repository: https://github.com/RoanH/osuWikiPreview
+ * GitLab Repository: https://git.roanh.dev/roan/osuwikipreview
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package dev.roanh.wiki.docker;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.URLEncoder;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import io.prometheus.metrics.core.datapoints.Timer;
+import io.prometheus.metrics.core.metrics.Counter;
+import io.prometheus.metrics.core.metrics.Summary;
+
+import dev.roanh.wiki.exception.DockerException;
+import dev.roanh.wiki.exception.DockerNotFoundException;
+import dev.roanh.wiki.exception.DockerTimeoutException;
+
+/**
+ * Minimal client for the Docker Engine HTTP API over the local Docker unix socket.
+ * Only the container, exec and image operations required to manage osu! web
+ * instances are supported. Every request has a deadline after which it is aborted,
+ * and requests can be cancelled by interrupting the calling thread.
+ * @author Roan
+ * @see <a href="https://docs.docker.com/reference/api/engine/">Docker Engine API</a>
+ */
+public class DockerClient{
+	/**
+	 * Summary of the time taken by Docker Engine requests by operation.
+	 */
+	private static final Summary requestTime = Summary.builder().name("wikipreview_docker_request_time").help("Time taken by Docker Engine API requests.").labelNames("operation").quantile(0.5D).quantile(0.9D).register();
+	/**
+	 * Counter for failed Docker Engine requests by operation and HTTP status.
+	 */
+	private static final Counter requestErrors = Counter.builder().name("wikipreview_docker_request_errors").help("Number of failed Docker Engine API requests.").labelNames("operation", "status").register();
+	/**
+	 * The default location of the Docker Engine socket.
+	 */
+	public static final Path DEFAULT_SOCKET = Path.of("/var/run/docker.sock");
+	/**
+	 * The Docker Engine API version requests are made against.
+	 */
+	private static final String API_VERSION = "/v1.43";
+	/**
+	 * The port osu! web containers listen on.
+	 */
+	private static final String WEB_PORT = "8000/tcp";
+	/**
+	 * Time to give containers to stop before they are killed.
+	 */
+	private static final int STOP_GRACE_SECONDS = 10;
+	/**
+	 * Stream type of standard error in multiplexed container output.
+	 */
+	private static final int STDERR = 2;
+	/**
+	 * Executor used to abort requests that exceed their deadline.
+	 */
+	private static final ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor(Thread.ofPlatform().daemon().name("docker-watchdog").factory());
+	/**
+	 * The address of the Docker Engine socket.
+	 */
+	private final UnixDomainSocketAddress address;
+	/**
+	 * The deadline for short requests that do not take an explicit timeout.
+	 */
+	private final Duration timeout;
+	
+	/**
+	 * Constructs a new Docker client.
+	 * @param socket The path to the Docker Engine socket.
+	 * @param timeout The deadline for short requests that do not take an explicit timeout.
+	 */
+	public DockerClient(Path socket, Duration timeout){
+		address = UnixDomainSocketAddress.of(socket);
+		this.timeout = timeout;
+	}
+	
+	/**
+	 * Starts the given container, starting a container that is already running has no effect.
+	 * @param container The name of the container to start.
+	 * @throws DockerException When the container could not be started.
+	 */
+	public void startContainer(String container) throws DockerException{
+		call("start", timeout, conn->{
+			conn.send("POST", "/containers/" + encode(container) + "/start", null);
+			conn.expect(204, 304);
+			return null;
+		});
+	}
+	
+	/**
+	 * Stops the given container, stopping a container that is not running has no effect.
+	 * @param container The name of the container to stop.
+	 * @throws DockerException When the container could not be stopped.
+	 */
+	public void stopContainer(String container) throws DockerException{
+		call("stop", timeout.plusSeconds(STOP_GRACE_SECONDS), conn->{
+			conn.send("POST", "/containers/" + encode(container) + "/stop?t=" + STOP_GRACE_SECONDS, null);
+			conn.expect(204, 304);
+			return null;
+		});
+	}
+	
+	/**
+	 * Removes the given stopped container.
+	 * @param container The name of the container to remove.
+	 * @throws DockerException When the container could not be removed.
+	 */
+	public void removeContainer(String container) throws DockerException{
+		call("remove", timeout, conn->{
+			conn.send("DELETE", "/containers/" + encode(container), null);
+			conn.expect(204);
+			return null;
+		});
+	}
+	
+	/**
+	 * Creates and starts a new detached container.
+	 * @param name The name of the new container.
+	 * @param image The image to run, including its tag.
+	 * @param env The environment variables for the container in <code>KEY=value</code> form.
+	 * @param port The host port to publish the osu! web port on.
+	 * @param binds The bind mounts for the container in <code>source:target[:options]</code> form.
+	 * @param cmd The command to run in the container.
+	 * @throws DockerException When the container could not be created or started.
+	 */
+	public void runContainer(String name, String image, List<String> env, int port, List<String> binds, List<String> cmd) throws DockerException{
+		JsonObject binding = new JsonObject();
+		binding.addProperty("HostPort", String.valueOf(port));
+		JsonArray bindings = new JsonArray();
+		bindings.add(binding);
+		JsonObject ports = new JsonObject();
+		ports.add(WEB_PORT, bindings);
+		
+		JsonObject exposed = new JsonObject();
+		exposed.add(WEB_PORT, new JsonObject());
+		JsonObject config = containerConfig(image, env, binds, cmd);
+		config.add("ExposedPorts", exposed);
+		config.getAsJsonObject("HostConfig").add("PortBindings", ports);
+		
+		createContainer(name, config);
+		startContainer(name);
+	}
+	
+	/**
+	 * Runs a command in a new temporary container and waits for it to complete.
+	 * Output is streamed while the command runs, so a command that times out or is
+	 * cancelled still reports everything it wrote until then. The container is removed
+	 * once the command completed.
+	 * @param image The image to run, including its tag.
+	 * @param env The environment variables for the container in <code>KEY=value</code> form.
+	 * @param binds The bind mounts for the container in <code>source:target[:options]</code> form.
+	 * @param cmd The command to run in the container.
+	 * @param output Receiver for the lines written to standard output and standard error.
+	 * @param deadline The maximum time the command is allowed to take.
+	 * @return The exit code of the command.
+	 * @throws DockerException When the command could not be run.
+	 */
+	public int runToCompletion(String image, List<String> env, List<String> binds, List<String> cmd, Consumer<String> output, Duration deadline) throws DockerException{
+		String id = createContainer(null, containerConfig(image, env, binds, cmd));
+		try{
+			startContainer(id);
+			
+			//stream output while the command runs, the stream ends once the container stops
+			call("logs", deadline, conn->{
+				conn.send("GET", "/containers/" + id + "/logs?follow=1&stdout=1&stderr=1", null);
+				conn.expect(200);
+				conn.readMultiplexed(output);
+				return null;
+			});
+			
+			return call("wait", timeout, conn->{
+				conn.send("POST", "/containers/" + id + "/wait", null);
+				conn.expect(200);
+				return conn.readJson().getAsJsonObject().get("StatusCode").getAsInt();
+			});
+		}finally{
+			//a cancelled command leaves the thread interrupted which would abort the cleanup
+			boolean interrupted = Thread.interrupted();
+			try{
+				call("remove", timeout, conn->{
+					conn.send("DELETE", "/containers/" + id + "?force=1", null);
+					conn.expect(204, 404);
+					return null;
+				});
+			}catch(DockerException ignore){
+				//best effort cleanup, the actual failure is more relevant
+			}finally{
+				if(interrupted){
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Runs a command in a running container and streams its output.
+	 * @param container The name of the container to run the command in.
+	 * @param cmd The command to run.
+	 * @param output Receiver for the lines written to standard output and standard error.
+	 * @param deadline The maximum time the command is allowed to take.
+	 * @return The exit code of the command.
+	 * @throws DockerException When the command could not be run.
+	 */
+	public int exec(String container, List<String> cmd, Consumer<String> output, Duration deadline) throws DockerException{
+		JsonObject config = new JsonObject();
+		config.addProperty("AttachStdout", true);
+		config.addProperty("AttachStderr", true);
+		config.addProperty("Tty", false);
+		config.add("Cmd", toArray(cmd));
+		
+		String id = call("exec_create", timeout, conn->{
+			conn.send("POST", "/containers/" + encode(container) + "/exec", config);
+			conn.expect(201);
+			return conn.readJson().getAsJsonObject().get("Id").getAsString();
+		});
+		
+		JsonObject start = new JsonObject();
+		start.addProperty("Detach", false);
+		start.addProperty("Tty", false);
+		call("exec", deadline, conn->{
+			conn.send("POST", "/exec/" + id + "/start", start);
+			conn.expect(200);
+			conn.readMultiplexed(output);
+			return null;
+		});
+		
+		return call("exec_inspect", timeout, conn->{
+			conn.send("GET", "/exec/" + id + "/json", null);
+			conn.expect(200);
+			return conn.readJson().getAsJsonObject().get("ExitCode").getAsInt();
+		});
+	}
+	
+	/**
+	 * Pulls the given image and streams the pull progress.
+	 * @param image The name of the image to pull.
+	 * @param tag The tag of the image to pull.
+	 * @param progress Receiver for pull progress messages.
+	 * @param deadline The maximum time the pull is allowed to take.
+	 * @throws DockerException When the image could not be pulled.
+	 */
+	public void pullImage(String image, String tag, Consumer<String> progress, Duration deadline) throws DockerException{
+		call("pull", deadline, conn->{
+			conn.send("POST", "/images/create?fromImage=" + encode(image) + "&tag=" + encode(tag), null);
+			conn.expect(200);
+			
+			//progress is streamed as one JSON message per line, errors can occur halfway
+			BufferedReader reader = new BufferedReader(new InputStreamReader(conn.body, StandardCharsets.UTF_8));
+			String line;
+			while((line = reader.readLine()) != null){
+				if(line.isBlank()){
+					continue;
+				}
+				
+				JsonObject message = JsonParser.parseString(line).getAsJsonObject();
+				if(message.has("error")){
+					throw new DockerException(500, message.get("error").getAsString());
+				}else if(message.has("status")){
+					progress.accept(message.has("id") ? (message.get("id").getAsString() + ": " + message.get("status").getAsString()) : message.get("status").getAsString());
+				}
+			}
+			
+			return null;
+		});
+	}
+	
+	/**
+	 * Reads the environment variables from a Docker environment file.
+	 * @param file The environment file to read.
+	 * @return The environment variables in <code>KEY=value</code> form.
+	 * @throws IOException When an IOException occurs.
+	 */
+	public static List<String> readEnvFile(Path file) throws IOException{
+		return Files.readAllLines(file, StandardCharsets.UTF_8).stream().map(String::strip).filter(line->!line.isEmpty() && !line.startsWith("#")).toList();
+	}
+	
+	/**
+	 * Creates a new container.
+	 * @param name The name of the new container or null to let Docker generate a name.
+	 * @param config The container configuration.
+	 * @return The ID of the created container.
+	 * @throws DockerException When the container could not be created.
+	 */
+	private String createContainer(String name, JsonObject config) throws DockerException{
+		return call("create", timeout, conn->{
+			conn.send("POST", "/containers/create" + (name == null ? "" : ("?name=" + encode(name))), config);
+			conn.expect(201);
+			return conn.readJson().getAsJsonObject().get("Id").getAsString();
+		});
+	}
+	
+	/**
+	 * Runs a single request against the Docker Engine.
+	 * @param <T> The result type of the request.
+	 * @param operation The name of the operation, used for metrics and errors.
+	 * @param deadline The maximum time the request is allowed to take.
+	 * @param request The request to run.
+	 * @return The result of the request.
+	 * @throws DockerException When the request failed, timed out or was cancelled.
+	 */
+	private <T> T call(String operation, Duration deadline, Request<T> request) throws DockerException{
+		Connection conn = null;
+		try(Timer _ = requestTime.labelValues(operation).startTimer()){
+			conn = new Connection(deadline);
+			return request.run(conn);
+		}catch(DockerException e){
+			requestErrors.labelValues(operation, String.valueOf(e.getStatus())).inc();
+			throw e;
+		}catch(ClosedByInterruptException e){
+			requestErrors.labelValues(operation, "cancelled").inc();
+			Thread.currentThread().interrupt();
+			throw new DockerException(e);
+		}catch(IOException | RuntimeException e){
+			if(conn != null && conn.expired){
+				requestErrors.labelValues(operation, "timeout").inc();
+				throw new DockerTimeoutException(operation, deadline);
+			}
+			
+			requestErrors.labelValues(operation, "io").inc();
+			throw new DockerException(e);
+		}finally{
+			if(conn != null){
+				conn.close();
+			}
+		}
+	}
+	
+	/**
+	 * Creates the base configuration for a new container.
+	 * @param image The image to run, including its tag.
+	 * @param env The environment variables for the container in <code>KEY=value</code> form.
+	 * @param binds The bind mounts for the container in <code>source:target[:options]</code> form.
+	 * @param cmd The command to run in the container.
+	 * @return The container configuration.
+	 */
+	private static JsonObject containerConfig(String image, List<String> env, List<String> binds, List<String> cmd){
+		JsonObject host = new JsonObject();
+		host.add("Binds", toArray(binds));
+		
+		JsonObject config = new JsonObject();
+		config.addProperty("Image", image);
+		config.add("Env", toArray(env));
+		config.add("Cmd", toArray(cmd));
+		config.add("HostConfig", host);
+		return config;
+	}
+	
+	/**
+	 * Converts the given list of strings to a JSON array.
+	 * @param values The values to convert.
+	 * @return The JSON array with the given values.
+	 */
+	private static JsonArray toArray(List<String> values){
+		JsonArray array = new JsonArray();
+		values.forEach(array::add);
+		return array;
+	}
+	
+	/**
+	 * URL encodes the given path or query component.
+	 * @param value The value to encode.
+	 * @return The encoded value.
+	 */
+	private static String encode(String value){
+		return URLEncoder.encode(value, StandardCharsets.UTF_8);
+	}
+	
+	/**
+	 * A single request against the Docker Engine.
+	 * @author Roan
+	 * @param <T> The result type of the request.
+	 */
+	@FunctionalInterface
+	private static abstract interface Request<T>{
+		
+		/**
+		 * Runs the request on the given connection.
+		 * @param conn The connection to the Docker Engine.
+		 * @return The result of the request.
+		 * @throws IOException When an IOException occurs.
+		 * @throws DockerException When the Docker Engine returned an error.
+		 */
+		public abstract T run(Connection conn) throws IOException, DockerException;
+	}
+	
+	/**
+	 * A single HTTP connection to the Docker Engine, connections are closed after one request.
+	 * @author Roan
+	 */
+	private final class Connection implements AutoCloseable{
+		/**
+		 * The channel connected to the Docker Engine socket.
+		 */
+		private final SocketChannel channel;
+		/**
+		 * The scheduled task that aborts the connection once its deadline passed.
+		 */
+		private final ScheduledFuture<?> deadline;
+		/**
+		 * True if the connection was aborted because its deadline passed.
+		 */
+		private volatile boolean expired = false;
+		/**
+		 * The HTTP response stream.
+		 */
+		private final InputStream in;
+		/**
+		 * The HTTP status of the response, only valid once the response was read.
+		 */
+		private int status;
+		/**
+		 * The decoded response body stream, only valid once the response was read.
+		 */
+		private InputStream body;
+		
+		/**
+		 * Opens a new connection to the Docker Engine.
+		 * @param timeout The maximum time the connection can remain open.
+		 * @throws IOException When an IOException occurs.
+		 */
+		private Connection(Duration timeout) throws IOException{
+			channel = SocketChannel.open(address);
+			in = new BufferedInputStream(Channels.newInputStream(channel));
+			deadline = watchdog.schedule(this::expire, timeout.toMillis(), TimeUnit.MILLISECONDS);
+		}
+		
+		/**
+		 * Sends a request over this connection.
+		 * @param method The HTTP method.
+		 * @param path The request path without API version prefix.
+		 * @param json The JSON body of the request or null if there is no body.
+		 * @throws IOException When an IOException occurs.
+		 */
+		private void send(String method, String path, JsonElement json) throws IOException{
+			byte[] data = json == null ? new byte[0] : json.toString().getBytes(StandardCharsets.UTF_8);
+			StringBuilder head = new StringBuilder();
+			head.append(method).append(' ').append(API_VERSION).append(path).append(" HTTP/1.1\r\n");
+			head.append("Host: docker\r\n");
+			head.append("Connection: close\r\n");
+			if(json != null){
+				head.append("Content-Type: application/json\r\n");
+			}
+			
+			head.append("Content-Length: ").append(data.length).append("\r\n\r\n");
+			
+			ByteBuffer buffer = ByteBuffer.allocate(head.length() + data.length);
+			buffer.put(head.toString().getBytes(StandardCharsets.US_ASCII));
+			buffer.put(data);
+			buffer.flip();
+			while(buffer.hasRemaining()){
+				channel.write(buffer);
+			}
+			
+			readResponse();
+		}
+		
+		/**
+		 * Checks that the response has one of the given statuses.
+		 * @param expected The expected HTTP statuses.
+		 * @throws IOException When an IOException occurs.
+		 * @throws DockerException When the response has a different status.
+		 */
+		private void expect(int... expected) throws IOException, DockerException{
+			for(int code : expected){
+				if(status == code){
+					return;
+				}
+			}
+			
+			String message = new String(body.readAllBytes(), StandardCharsets.UTF_8);
+			try{
+				message = JsonParser.parseString(message).getAsJsonObject().get("message").getAsString();
+			}catch(RuntimeException ignore){
+				//not a JSON error response, use the raw body
+			}
+			
+			throw status == 404 ? new DockerNotFoundException(message) : new DockerException(status, message);
+		}
+		
+		/**
+		 * Reads the response body as JSON.
+		 * @return The parsed response body.
+		 * @throws IOException When an IOException occurs.
+		 */
+		private JsonElement readJson() throws IOException{
+			return JsonParser.parseString(new String(body.readAllBytes(), StandardCharsets.UTF_8));
+		}
+		
+		/**
+		 * Reads multiplexed container output from the response body and passes it on line by line.
+		 * Each frame starts with an 8 byte header with the stream type and the frame length.
+		 * @param output Receiver for the output lines, standard error lines are prefixed.
+		 * @throws IOException When an IOException occurs.
+		 */
+		private void readMultiplexed(Consumer<String> output) throws IOException{
+			Map<Integer, ByteArrayOutputStream> pending = new HashMap<Integer, ByteArrayOutputStream>();
+			byte[] header = new byte[8];
+			while(readFully(body, header, true)){
+				int stream = header[0];
+				int length = ((header[4] & 0xFF) << 24) | ((header[5] & 0xFF) << 16) | ((header[6] & 0xFF) << 8) | (header[7] & 0xFF);
+				byte[] frame = new byte[length];
+				readFully(body, frame, false);
+				
+				ByteArrayOutputStream line = pending.computeIfAbsent(stream, _->new ByteArrayOutputStream());
+				for(byte b : frame){
+					if(b == '\n'){
+						emit(output, stream, line);
+					}else{
+						line.write(b);
+					}
+				}
+			}
+			
+			for(Map.Entry<Integer, ByteArrayOutputStream> line : pending.entrySet()){
+				if(line.getValue().size() > 0){
+					emit(output, line.getKey(), line.getValue());
+				}
+			}
+		}
+		
+		/**
+		 * Passes a completed output line on to the output receiver.
+		 * @param output The output receiver.
+		 * @param stream The stream the line was written to.
+		 * @param line The line buffer, reset after the line was passed on.
+		 */
+		private void emit(Consumer<String> output, int stream, ByteArrayOutputStream line){
+			output.accept((stream == STDERR ? "[stderr] " : "") + line.toString(StandardCharsets.UTF_8));
+			line.reset();
+		}
+		
+		/**
+		 * Reads the response status line and headers and prepares the body stream.
+		 * @throws IOException When an IOException occurs.
+		 */
+		private void readResponse() throws IOException{
+			String statusLine = readLine();
+			String[] parts = statusLine.split(" ", 3);
+			if(parts.length < 2 || !parts[0].startsWith("HTTP/")){
+				throw new IOException("Invalid HTTP status line: " + statusLine);
+			}
+			
+			status = Integer.parseInt(parts[1]);
+			
+			boolean chunked = false;
+			long length = -1L;
+			String line;
+			while(!(line = readLine()).isEmpty()){
+				int split = line.indexOf(':');
+				if(split != -1){
+					String name = line.substring(0, split).strip().toLowerCase(Locale.ROOT);
+					String value = line.substring(split + 1).strip();
+					if(name.equals("transfer-encoding")){
+						chunked = value.equalsIgnoreCase("chunked");
+					}else if(name.equals("content-length")){
+						length = Long.parseLong(value);
+					}
+				}
+			}
+			
+			if(chunked){
+				body = new ChunkedInputStream(in);
+			}else if(length >= 0L){
+				body = new BoundedInputStream(in, length);
+			}else{
+				body = in;
+			}
+		}
+		
+		/**
+		 * Reads a single CRLF terminated line from the response stream.
+		 * @return The line without the line terminator.
+		 * @throws IOException When an IOException occurs.
+		 */
+		private String readLine() throws IOException{
+			return DockerClient.readLine(in);
+		}
+		
+		/**
+		 * Aborts this connection because its deadline passed.
+		 */
+		private void expire(){
+			expired = true;
+			try{
+				channel.close();
+			}catch(IOException ignore){
+				//closing is best effort
+			}
+		}
+		
+		@Override
+		public void close(){
+			deadline.cancel(false);
+			try{
+				channel.close();
+			}catch(IOException ignore){
+				//closing is best effort
+			}
+		}
+	}
+	
+	/**
+	 * Reads a single CRLF terminated line from the given stream.
+	 * @param in The stream to read from.
+	 * @return The line without the line terminator.
+	 * @throws IOException When an IOException occurs.
+	 */
+	private static String readLine(InputStream in) throws IOException{
+		ByteArrayOutputStream line = new ByteArrayOutputStream();
+		int b;
+		while((b = in.read()) != '\n'){
+			if(b == -1){
+				throw new EOFException("Connection closed while reading the response.");
+			}else if(b != '\r'){
+				line.write(b);
+			}
+		}
+		
+		return line.toString(StandardCharsets.US_ASCII);
+	}
+	
+	/**
+	 * Fills the given buffer from the given stream.
+	 * @param in The stream to read from.
+	 * @param buffer The buffer to fill.
+	 * @param allowEnd True if the end of the stream is allowed before the first byte was read.
+	 * @return False if the stream ended before the first byte was read, else true.
+	 * @throws IOException When an IOException occurs or the stream ended early.
+	 */
+	private static boolean readFully(InputStream in, byte[] buffer, boolean allowEnd) throws IOException{
+		int offset = 0;
+		while(offset < buffer.length){
+			int read = in.read(buffer, offset, buffer.length - offset);
+			if(read == -1){
+				if(offset == 0 && allowEnd){
+					return false;
+				}
+				
+				throw new EOFException("Connection closed while reading the response.");
+			}
+			
+			offset += read;
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Input stream that reads a fixed number of bytes from an underlying stream.
+	 * @author Roan
+	 */
+	private static final class BoundedInputStream extends InputStream{
+		/**
+		 * The underlying stream.
+		 */
+		private final InputStream in;
+		/**
+		 * The number of bytes that can still be read.
+		 */
+		private long remaining;
+		
+		/**
+		 * Constructs a new bounded input stream.
+		 * @param in The underlying stream.
+		 * @param length The number of bytes that can be read.
+		 */
+		private BoundedInputStream(InputStream in, long length){
+			this.in = in;
+			remaining = length;
+		}
+		
+		@Override
+		public int read() throws IOException{
+			if(remaining <= 0L){
+				return -1;
+			}
+			
+			int b = in.read();
+			if(b != -1){
+				remaining--;
+			}
+			
+			return b;
+		}
+		
+		@Override
+		public int read(byte[] buffer, int offset, int length) throws IOException{
+			if(remaining <= 0L){
+				return -1;
+			}
+			
+			int read = in.read(buffer, offset, (int)Math.min(length, remaining));
+			if(read > 0){
+				remaining -= read;
+			}
+			
+			return read;
+		}
+	}
+	
+	/**
+	 * Input stream that decodes a HTTP chunked transfer encoded stream.
+	 * @author Roan
+	 */
+	private static final class ChunkedInputStream extends InputStream{
+		/**
+		 * The underlying stream.
+		 */
+		private final InputStream in;
+		/**
+		 * The number of bytes left in the current chunk.
+		 */
+		private int remaining = 0;
+		/**
+		 * True once the final chunk was read.
+		 */
+		private boolean done = false;
+		
+		/**
+		 * Constructs a new chunked input stream.
+		 * @param in The underlying stream.
+		 */
+		private ChunkedInputStream(InputStream in){
+			this.in = in;
+		}
+		
+		@Override
+		public int read() throws IOException{
+			if(!nextChunk()){
+				return -1;
+			}
+			
+			remaining--;
+			return in.read();
+		}
+		
+		@Override
+		public int read(byte[] buffer, int offset, int length) throws IOException{
+			if(!nextChunk()){
+				return -1;
+			}
+			
+			int read = in.read(buffer, offset, Math.min(length, remaining));
+			if(read == -1){
+				throw new EOFException("Connection closed in the middle of a chunk.");
+			}
+			
+			remaining -= read;
+			return read;
+		}
+		
+		/**
+		 * Moves to the next chunk if the current chunk was fully read.
+		 * @return False if the final chunk was reached, else true.
+		 * @throws IOException When an IOException occurs.
+		 */
+		private boolean nextChunk() throws IOException{
+			if(done){
+				return false;
+			}else if(remaining > 0){
+				return true;
+			}
+			
+			String line = readLine(in);
+			if(line.isEmpty()){
+				//terminator of the previous chunk
+				line = readLine(in);
+			}
+			
+			int extension = line.indexOf(';');
+			remaining = Integer.parseInt((extension == -1 ? line : line.substring(0, extension)).strip(), 16);
+			if(remaining == 0){
+				done = true;
+				return false;
+			}
+			
+			return true;
+		}
+	}
+}
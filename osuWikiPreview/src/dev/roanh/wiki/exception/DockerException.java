@@ -0,0 +1,62 @@
+/*
+ * osu! wiki preview site
+ * Copyright (C) 2023  Roan Hofland (roan@roanh.dev) and contributors.
+ * GitHub Repository: https://github.com/RoanH/osuWikiPreview
+ * GitLab Repository: https://git.roanh.dev/roan/osuwikipreview
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package dev.roanh.wiki.exception;
+
+/**
+ * Exception thrown when a Docker Engine API request fails.
+ * @author Roan
+ */
+public class DockerException extends WebException{
+	/**
+	 * Serial ID.
+	 */
+	private static final long serialVersionUID = 4038265960251338427L;
+	/**
+	 * The HTTP status returned by the Docker Engine, 0 if the request failed before a response was received.
+	 */
+	private final int status;
+	
+	/**
+	 * Constructs a new Docker exception for an error response.
+	 * @param status The HTTP status returned by the Docker Engine.
+	 * @param message The error message returned by the Docker Engine.
+	 */
+	public DockerException(int status, String message){
+		super(message);
+		this.status = status;
+	}
+	
+	/**
+	 * Constructs a new Docker exception with the given root cause.
+	 * @param cause The root cause.
+	 */
+	public DockerException(Throwable cause){
+		super(cause);
+		status = 0;
+	}
+	
+	/**
+	 * Gets the HTTP status returned by the Docker Engine.
+	 * @return The HTTP status or 0 if the request failed before a response was received.
+	 */
+	public int getStatus(){
+		return status;
+	}
+}
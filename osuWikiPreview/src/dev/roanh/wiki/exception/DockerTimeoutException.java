@@ -0,0 +1,42 @@
+/*
+ * osu! wiki preview site
+ * Copyright (C) 2023  Roan Hofland (roan@roanh.dev) and contributors.
+ * GitHub Repository: https://github.com/RoanH/osuWikiPreview
+ * GitLab Repository: https://git.roanh.dev/roan/osuwikipreview
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package dev.roanh.wiki.exception;
+
+import java.time.Duration;
+
+/**
+ * Exception thrown when a Docker Engine API request does not complete before its deadline.
+ * @author Roan
+ */
+public class DockerTimeoutException extends DockerException{
+	/**
+	 * Serial ID.
+	 */
+	private static final long serialVersionUID = 2520473919519536781L;
+	
+	/**
+	 * Constructs a new Docker timeout exception.
+	 * @param operation The operation that timed out.
+	 * @param timeout The deadline the operation exceeded.
+	 */
+	public DockerTimeoutException(String operation, Duration timeout){
+		super(0, "Docker operation " + operation + " timed out after " + timeout.toSeconds() + " seconds.");
+	}
+}
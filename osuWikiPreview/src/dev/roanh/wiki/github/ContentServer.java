@@ -0,0 +1,561 @@
+/*
+ * osu! wiki preview site
+ * Copyright (C) 2023  Roan Hofland (roan@roanh.dev) and contributors.
+ * GitHub Repository: https://github.com/RoanH/osuWikiPreview
+ * GitLab Repository: https://git.roanh.dev/roan/osuwikipreview
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package dev.roanh.wiki.github;
+
+import java.io.IOException;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.regex.Pattern;
+
+import org.eclipse.jgit.diff.DiffEntry;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectLoader;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevTree;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.revwalk.filter.RevFilter;
+import org.eclipse.jgit.treewalk.TreeWalk;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import io.prometheus.metrics.core.metrics.Counter;
+
+import dev.roanh.infinity.http.HttpParams;
+import dev.roanh.infinity.http.WebServer;
+import dev.roanh.infinity.http.handler.RequestHandler;
+import dev.roanh.isla.reporting.Priority;
+import dev.roanh.isla.reporting.Severity;
+import dev.roanh.wiki.Main;
+
+/**
+ * Small web server that serves the subset of the GitHub REST API used by osu! web
+ * to synchronise wiki and news content. All responses are served straight from the
+ * objects in the local wiki repository, so instances do not have to download content
+ * from GitHub that the wiki repository already has. The supported endpoints are:
+ * <ul>
+ * <li><code>GET /repos/{owner}/{repo}/compare/{base}...{head}</code></li>
+ * <li><code>GET /repos/{owner}/{repo}/contents/{path}?ref={ref}</code></li>
+ * <li><code>GET /repos/{owner}/{repo}/git/trees/{tree}?recursive=1</code></li>
+ * <li><code>GET /repos/{owner}/{repo}/git/blobs/{sha}</code></li>
+ * </ul>
+ * The owner and repository in the path are ignored as only the wiki repository is served.
+ * Instances reach the server as a GitHub Enterprise host, so all endpoints are also
+ * served under the <code>/api/v3</code> prefix that GitHub Enterprise clients add.
+ * All objects are immutable, so object IDs are used as entity tags.
+ * @author Roan
+ */
+public class ContentServer{
+	/**
+	 * Counter for the number of requests by endpoint and result.
+	 */
+	private static final Counter requests = Counter.builder().name("wikipreview_content_requests").help("Number of content server requests.").labelNames("endpoint", "result").register();
+	/**
+	 * Pattern matching a full commit hash.
+	 */
+	private static final Pattern SHA_REGEX = Pattern.compile("[0-9a-f]{40}");
+	/**
+	 * Path prefix used by GitHub Enterprise clients for all REST API requests.
+	 */
+	private static final String ENTERPRISE_PREFIX = "/api/v3";
+	/**
+	 * Media type requested by clients that want raw file contents instead of JSON.
+	 */
+	private static final String RAW_MEDIA_TYPE = "application/vnd.github.raw";
+	/**
+	 * Media type requested by clients that want raw file contents instead of JSON, v3 API variant.
+	 */
+	private static final String RAW_MEDIA_TYPE_V3 = "application/vnd.github.v3.raw";
+	/**
+	 * Default maximum size in bytes of served blobs, the same limit GitHub uses for the blob API.
+	 */
+	private static final int MAX_BLOB_SIZE = 100 * 1024 * 1024;
+	/**
+	 * The actual web server serving content requests.
+	 */
+	private final WebServer server;
+	/**
+	 * The repository to serve content from.
+	 */
+	private final Repository repo;
+	/**
+	 * Resolver for the refs requested by instances.
+	 */
+	private final RefResolver resolver;
+	/**
+	 * Maximum size in bytes of served blobs, larger blobs are rejected.
+	 */
+	private final int maxBlobSize;
+	
+	/**
+	 * Constructs but does not yet start a content server.
+	 * @param port The port to run the server on.
+	 * @param repo The repository to serve content from.
+	 * @param resolver Resolver for the refs requested by instances.
+	 */
+	public ContentServer(int port, Repository repo, RefResolver resolver){
+		this(port, repo, resolver, MAX_BLOB_SIZE);
+	}
+	
+	/**
+	 * Constructs but does not yet start a content server.
+	 * @param port The port to run the server on.
+	 * @param repo The repository to serve content from.
+	 * @param resolver Resolver for the refs requested by instances.
+	 * @param maxBlobSize Maximum size in bytes of served blobs.
+	 */
+	ContentServer(int port, Repository repo, RefResolver resolver, int maxBlobSize){
+		this.repo = repo;
+		this.resolver = resolver;
+		this.maxBlobSize = maxBlobSize;
+		server = new WebServer(port);
+		server.setExceptionHandler(t->Main.client.logError(t, "[ContentServer] Unhandled exception: " + t.getMessage(), Severity.MAJOR, Priority.HIGH));
+		server.createContext("/", false, (_, _, _)->RequestHandler.status(HttpResponseStatus.NOT_FOUND));
+		server.createContext("/repos/", false, this::handleRequest);
+		server.createContext(ENTERPRISE_PREFIX + "/repos/", false, (request, path, data)->handleRequest(request, path.substring(ENTERPRISE_PREFIX.length()), data));
+	}
+	
+	/**
+	 * Starts the content server.
+	 */
+	public void start(){
+		server.runAsync();
+	}
+	
+	/**
+	 * Stops the content server.
+	 */
+	public void stop(){
+		server.shutdown();
+	}
+	
+	/**
+	 * Handles a GitHub API request by dispatching it to the matching endpoint.
+	 * @param request The API request.
+	 * @param path The request path.
+	 * @param data The request parameters.
+	 * @return The response for the request.
+	 * @throws IOException When an IOException occurs.
+	 */
+	private FullHttpResponse handleRequest(FullHttpRequest request, String path, HttpParams data) throws IOException{
+		//path format: /repos/{owner}/{repo}/{endpoint}/{rest}
+		String[] parts = path.split("/", 6);
+		if(parts.length < 6){
+			return notFound("unknown");
+		}
+		
+		String etag = request.headers().get(HttpHeaderNames.IF_NONE_MATCH);
+		String accept = request.headers().get(HttpHeaderNames.ACCEPT);
+		boolean raw = accept != null && (accept.contains(RAW_MEDIA_TYPE) || accept.contains(RAW_MEDIA_TYPE_V3));
+		String rest = URLDecoder.decode(parts[5].replace("+", "%2B"), StandardCharsets.UTF_8);
+		
+		switch(parts[4]){
+		case "compare":
+			return compare(rest, etag);
+		case "contents":
+			String ref = data.getFirst("ref");
+			return contents(rest, ref == null ? Constants.MASTER : ref, raw, etag);
+		case "git":
+			if(rest.startsWith("trees/")){
+				String recursive = data.getFirst("recursive");
+				return tree(rest.substring(6), recursive != null && !recursive.equals("0") && !recursive.equals("false"), etag);
+			}else if(rest.startsWith("blobs/")){
+				return blob(rest.substring(6), raw, etag);
+			}
+			//fall through
+		default:
+			return notFound("unknown");
+		}
+	}
+	
+	/**
+	 * Handles a compare request listing the files changed between the merge base of two refs and the head ref.
+	 * @param spec The compare spec in the form <code>base...head</code>.
+	 * @param etag The entity tag the client has cached, or null.
+	 * @return The response for the request.
+	 * @throws IOException When an IOException occurs.
+	 */
+	FullHttpResponse compare(String spec, String etag) throws IOException{
+		int split = spec.indexOf("...");
+		if(split == -1){
+			return notFound("compare");
+		}
+		
+		ObjectId base = resolve(spec.substring(0, split));
+		ObjectId head = resolve(spec.substring(split + 3));
+		if(base == null || head == null){
+			return notFound("compare");
+		}
+		
+		try(RevWalk rev = new RevWalk(repo); TreeWalk walk = new TreeWalk(repo)){
+			RevCommit target = rev.parseCommit(head);
+			rev.markStart(rev.parseCommit(base));
+			rev.markStart(target);
+			rev.setRevFilter(RevFilter.MERGE_BASE);
+			RevCommit mergeBase = rev.next();
+			if(mergeBase == null){
+				//unrelated histories, GitHub has no comparison either
+				return notFound("compare");
+			}
+			
+			String tag = entityTag(mergeBase.getName() + "-" + target.getName());
+			if(tag.equals(etag)){
+				return notModified("compare", tag);
+			}
+			
+			walk.setRecursive(true);
+			walk.addTree(mergeBase.getTree());
+			walk.addTree(target.getTree());
+			
+			JsonArray files = new JsonArray();
+			for(DiffEntry entry : DiffEntry.scan(walk)){
+				JsonObject file = new JsonObject();
+				switch(entry.getChangeType()){
+				case ADD:
+					file.addProperty("status", "added");
+					break;
+				case DELETE:
+					file.addProperty("status", "removed");
+					break;
+				case MODIFY:
+					file.addProperty("status", "modified");
+					break;
+				case RENAME:
+				case COPY:
+					file.addProperty("status", "renamed");
+					file.addProperty("previous_filename", entry.getOldPath());
+					break;
+				}
+				
+				boolean deleted = entry.getChangeType() == DiffEntry.ChangeType.DELETE;
+				file.addProperty("filename", deleted ? entry.getOldPath() : entry.getNewPath());
+				file.addProperty("sha", (deleted ? entry.getOldId() : entry.getNewId()).name());
+				files.add(file);
+			}
+			
+			JsonObject result = new JsonObject();
+			result.addProperty("status", mergeBase.equals(target) ? "identical" : "ahead");
+			result.add("merge_base_commit", commit(mergeBase));
+			result.add("base_commit", commit(rev.parseCommit(base)));
+			result.add("files", files);
+			return json("compare", result, tag);
+		}
+	}
+	
+	/**
+	 * Handles a contents request for either a file or a directory.
+	 * @param path The path of the file or directory in the repository.
+	 * @param ref The ref to get the contents at.
+	 * @param raw True if the raw file contents were requested instead of JSON.
+	 * @param etag The entity tag the client has cached, or null.
+	 * @return The response for the request.
+	 * @throws IOException When an IOException occurs.
+	 */
+	FullHttpResponse contents(String path, String ref, boolean raw, String etag) throws IOException{
+		ObjectId commit = resolve(ref);
+		if(commit == null || path.isEmpty()){
+			return notFound("contents");
+		}
+		
+		try(RevWalk rev = new RevWalk(repo); TreeWalk walk = TreeWalk.forPath(repo, path, rev.parseCommit(commit).getTree())){
+			if(walk == null){
+				return notFound("contents");
+			}
+			
+			ObjectId id = walk.getObjectId(0);
+			String tag = entityTag(id.name() + (raw ? "-raw" : ""));
+			if(tag.equals(etag)){
+				return notModified("contents", tag);
+			}
+			
+			if(walk.getFileMode(0) == FileMode.TREE){
+				JsonArray entries = new JsonArray();
+				try(TreeWalk children = new TreeWalk(repo)){
+					children.addTree(id);
+					while(children.next()){
+						entries.add(contentEntry(children, path + "/" + children.getPathString()));
+					}
+				}
+				
+				return json("contents", entries, tag);
+			}else if(raw){
+				return blob("contents", id, tag);
+			}else{
+				ObjectLoader loader = repo.open(id, Constants.OBJ_BLOB);
+				if(loader.getSize() > maxBlobSize){
+					return tooLarge("contents");
+				}
+				
+				JsonObject file = contentEntry(walk, path);
+				file.addProperty("encoding", "base64");
+				file.addProperty("content", Base64.getEncoder().encodeToString(loader.getCachedBytes(maxBlobSize)));
+				return json("contents", file, tag);
+			}
+		}
+	}
+	
+	/**
+	 * Handles a tree request.
+	 * @param name The ID of the tree, a commit or a ref to get the tree of.
+	 * @param recursive True to also list all entries of subtrees.
+	 * @param etag The entity tag the client has cached, or null.
+	 * @return The response for the request.
+	 * @throws IOException When an IOException occurs.
+	 */
+	FullHttpResponse tree(String name, boolean recursive, String etag) throws IOException{
+		ObjectId id = SHA_REGEX.matcher(name).matches() ? ObjectId.fromString(name) : resolver.resolve(name);
+		if(id == null || !repo.getObjectDatabase().has(id)){
+			return notFound("tree");
+		}
+		
+		try(RevWalk rev = new RevWalk(repo); TreeWalk walk = new TreeWalk(repo)){
+			RevTree tree = rev.parseTree(id);
+			String tag = entityTag(tree.getName() + (recursive ? "-recursive" : ""));
+			if(tag.equals(etag)){
+				return notModified("tree", tag);
+			}
+			
+			JsonArray entries = new JsonArray();
+			walk.addTree(tree);
+			while(walk.next()){
+				boolean subtree = walk.isSubtree();
+				JsonObject entry = new JsonObject();
+				entry.addProperty("path", walk.getPathString());
+				entry.addProperty("mode", String.format("%06o", walk.getRawMode(0)));
+				entry.addProperty("type", subtree ? "tree" : "blob");
+				entry.addProperty("sha", walk.getObjectId(0).name());
+				if(!subtree){
+					entry.addProperty("size", walk.getObjectReader().getObjectSize(walk.getObjectId(0), Constants.OBJ_BLOB));
+				}
+				
+				entries.add(entry);
+				if(subtree && recursive){
+					walk.enterSubtree();
+				}
+			}
+			
+			JsonObject result = new JsonObject();
+			result.addProperty("sha", tree.getName());
+			result.add("tree", entries);
+			result.addProperty("truncated", false);
+			return json("tree", result, tag);
+		}
+	}
+	
+	/**
+	 * Handles a blob request.
+	 * @param sha The ID of the blob.
+	 * @param raw True if the raw blob contents were requested instead of JSON.
+	 * @param etag The entity tag the client has cached, or null.
+	 * @return The response for the request.
+	 * @throws IOException When an IOException occurs.
+	 */
+	FullHttpResponse blob(String sha, boolean raw, String etag) throws IOException{
+		if(!SHA_REGEX.matcher(sha).matches() || !repo.getObjectDatabase().has(ObjectId.fromString(sha))){
+			return notFound("blob");
+		}
+		
+		ObjectId id = ObjectId.fromString(sha);
+		String tag = entityTag(id.name() + (raw ? "-raw" : ""));
+		if(tag.equals(etag)){
+			return notModified("blob", tag);
+		}else if(raw){
+			return blob("blob", id, tag);
+		}else{
+			ObjectLoader loader = repo.open(id, Constants.OBJ_BLOB);
+			if(loader.getSize() > maxBlobSize){
+				return tooLarge("blob");
+			}
+			
+			JsonObject result = new JsonObject();
+			result.addProperty("sha", id.name());
+			result.addProperty("size", loader.getSize());
+			result.addProperty("encoding", "base64");
+			result.addProperty("content", Base64.getEncoder().encodeToString(loader.getCachedBytes(maxBlobSize)));
+			return json("blob", result, tag);
+		}
+	}
+	
+	/**
+	 * Resolves a ref or commit hash to a commit.
+	 * @param ref The ref or commit hash to resolve.
+	 * @return The resolved commit or null if the ref does not exist.
+	 * @throws IOException When an IOException occurs.
+	 */
+	private ObjectId resolve(String ref) throws IOException{
+		if(SHA_REGEX.matcher(ref).matches()){
+			ObjectId id = ObjectId.fromString(ref);
+			return repo.getObjectDatabase().has(id) ? id : null;
+		}
+		
+		return resolver.resolve(ref);
+	}
+	
+	/**
+	 * Creates a response with the raw bytes of the given blob. Blob contents are
+	 * wrapped as is when cached by JGit and only large blobs are copied over.
+	 * Responses are always fully buffered, so blobs over the size limit are
+	 * rejected instead of being read into memory.
+	 * @param endpoint The endpoint the response is for.
+	 * @param id The ID of the blob.
+	 * @param tag The entity tag of the response.
+	 * @return The response with the blob contents.
+	 * @throws IOException When an IOException occurs.
+	 */
+	private FullHttpResponse blob(String endpoint, ObjectId id, String tag) throws IOException{
+		try(ObjectReader reader = repo.newObjectReader()){
+			ObjectLoader loader = reader.open(id, Constants.OBJ_BLOB);
+			if(loader.getSize() > maxBlobSize){
+				return tooLarge(endpoint);
+			}
+			
+			return respond(endpoint, Unpooled.wrappedBuffer(loader.getCachedBytes(maxBlobSize)), "application/octet-stream", tag);
+		}
+	}
+	
+	/**
+	 * Creates a JSON object describing a contents entry.
+	 * @param walk The tree walk positioned at the entry.
+	 * @param path The full path of the entry.
+	 * @return The JSON object describing the entry.
+	 * @throws IOException When an IOException occurs.
+	 */
+	private static JsonObject contentEntry(TreeWalk walk, String path) throws IOException{
+		boolean dir = walk.isSubtree();
+		JsonObject entry = new JsonObject();
+		entry.addProperty("type", dir ? "dir" : "file");
+		entry.addProperty("name", walk.getNameString());
+		entry.addProperty("path", path);
+		entry.addProperty("sha", walk.getObjectId(0).name());
+		entry.addProperty("size", dir ? 0L : walk.getObjectReader().getObjectSize(walk.getObjectId(0), Constants.OBJ_BLOB));
+		return entry;
+	}
+	
+	/**
+	 * Creates a JSON object describing a commit.
+	 * @param commit The commit to describe.
+	 * @return The JSON object describing the commit.
+	 */
+	private static JsonObject commit(RevCommit commit){
+		JsonObject result = new JsonObject();
+		result.addProperty("sha", commit.getName());
+		return result;
+	}
+	
+	/**
+	 * Creates a quoted entity tag from the given value.
+	 * @param value The value of the entity tag.
+	 * @return The quoted entity tag.
+	 */
+	private static String entityTag(String value){
+		return "\"" + value + "\"";
+	}
+	
+	/**
+	 * Creates a JSON response.
+	 * @param endpoint The endpoint the response is for.
+	 * @param json The JSON content of the response.
+	 * @param tag The entity tag of the response.
+	 * @return The JSON response.
+	 */
+	private static FullHttpResponse json(String endpoint, JsonElement json, String tag){
+		return respond(endpoint, Unpooled.wrappedBuffer(json.toString().getBytes(StandardCharsets.UTF_8)), "application/json; charset=utf-8", tag);
+	}
+	
+	/**
+	 * Creates a successful response with the given content.
+	 * @param endpoint The endpoint the response is for.
+	 * @param content The content of the response.
+	 * @param type The content type of the response.
+	 * @param tag The entity tag of the response.
+	 * @return The response.
+	 */
+	private static FullHttpResponse respond(String endpoint, ByteBuf content, String type, String tag){
+		FullHttpResponse resp = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK, content);
+		resp.headers().set(HttpHeaderNames.CONTENT_TYPE, type);
+		resp.headers().set(HttpHeaderNames.CONTENT_LENGTH, content.readableBytes());
+		resp.headers().set(HttpHeaderNames.ETAG, tag);
+		requests.labelValues(endpoint, "ok").inc();
+		return resp;
+	}
+	
+	/**
+	 * Creates a not modified response.
+	 * @param endpoint The endpoint the response is for.
+	 * @param tag The entity tag of the response.
+	 * @return The not modified response.
+	 */
+	private static FullHttpResponse notModified(String endpoint, String tag){
+		FullHttpResponse resp = RequestHandler.status(HttpResponseStatus.NOT_MODIFIED);
+		resp.headers().set(HttpHeaderNames.ETAG, tag);
+		requests.labelValues(endpoint, "not_modified").inc();
+		return resp;
+	}
+	
+	/**
+	 * Creates a not found response.
+	 * @param endpoint The endpoint the response is for.
+	 * @return The not found response.
+	 */
+	private static FullHttpResponse notFound(String endpoint){
+		requests.labelValues(endpoint, "not_found").inc();
+		return RequestHandler.status(HttpResponseStatus.NOT_FOUND);
+	}
+	
+	/**
+	 * Creates a response for a blob that exceeds the size limit.
+	 * @param endpoint The endpoint the response is for.
+	 * @return The content too large response.
+	 */
+	private static FullHttpResponse tooLarge(String endpoint){
+		requests.labelValues(endpoint, "too_large").inc();
+		return RequestHandler.status(HttpResponseStatus.REQUEST_ENTITY_TOO_LARGE);
+	}
+	
+	/**
+	 * Resolver for the refs requested by osu! web instances.
+	 * @author Roan
+	 */
+	@FunctionalInterface
+	public static abstract interface RefResolver{
+		
+		/**
+		 * Resolves the given ref to a commit.
+		 * @param ref The ref to resolve.
+		 * @return The resolved commit or null if the ref does not exist.
+		 * @throws IOException When an IOException occurs.
+		 */
+		public abstract ObjectId resolve(String ref) throws IOException;
+	}
+}
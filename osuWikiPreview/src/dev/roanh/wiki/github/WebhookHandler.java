@@ -41,9 +41,11 @@ import dev.roanh.wiki.Main;
 import dev.roanh.wiki.github.handler.IssueCommentHandler;
 import dev.roanh.wiki.github.handler.PullRequestCommitHandler;
 import dev.roanh.wiki.github.handler.PullRequestOpenedHandler;
+import dev.roanh.wiki.github.handler.PushHandler;
 import dev.roanh.wiki.github.hooks.IssueCommentCreatedData;
 import dev.roanh.wiki.github.hooks.PullRequestOpenData;
 import dev.roanh.wiki.github.hooks.PullRequestSyncData;
+import dev.roanh.wiki.github.hooks.PushData;
 
 /**
  * Small web server to handle GitHub webhook events.
@@ -70,6 +72,10 @@ public class WebhookHandler implements BodyHandler{
 	 * A list of subscribed pull request commit handlers.
 	 */
 	private final List<PullRequestCommitHandler> pullRequestCommitHandlers = new CopyOnWriteArrayList<PullRequestCommitHandler>();
+	/**
+	 * A list of subscribed push handlers.
+	 */
+	private final List<PushHandler> pushHandlers = new CopyOnWriteArrayList<PushHandler>();
 	
 	/**
 	 * Constructs but does not yet start a webhook handler.
@@ -121,6 +127,14 @@ public class WebhookHandler implements BodyHandler{
 	public void addPullRequestCommitHandler(PullRequestCommitHandler handler){
 		pullRequestCommitHandlers.add(handler);
 	}
+	
+	/**
+	 * Registers a new push handler to this webhook handler.
+	 * @param handler The handler to register.
+	 */
+	public void addPushHandler(PushHandler handler){
+		pushHandlers.add(handler);
+	}
 
 	@Override
 	public FullHttpResponse handle(FullHttpRequest request, HttpBody data) throws Exception{
@@ -138,6 +152,9 @@ public class WebhookHandler implements BodyHandler{
 		case "pull_request":
 			handlePullRequestEvent(requestObject);
 			break;
+		case "push":
+			handlePushEvent(requestObject);
+			break;
 		default:
 			break;
 		}
@@ -173,6 +190,17 @@ public class WebhookHandler implements BodyHandler{
 		}
 	}
 	
+	/**
+	 * Handles a received GitHub push event.
+	 * @param json The received event payload.
+	 */
+	private void handlePushEvent(JsonObject json){
+		PushData data = GitHub.getGson().fromJson(json, PushData.class);
+		for(PushHandler handler : pushHandlers){
+			handler.handlePush(data);
+		}
+	}
+	
 	/**
 	 * Handles a received GitHub issue comment event.
 	 * @param json The received event payload.
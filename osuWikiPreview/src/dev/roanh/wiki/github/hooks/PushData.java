@@ -0,0 +1,48 @@
+/*
+ * osu! wiki preview site
+ * Copyright (C) 2023  Roan Hofland (roan@roanh.dev) and contributors.
+ * GitHub Repository: https://github.com/RoanH/osuWikiPreview
+ * GitLab Repository: https://git.roanh.dev/roan/osuwikipreview
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package dev.roanh.wiki.github.hooks;
+
+import dev.roanh.wiki.github.handler.PushHandler;
+import dev.roanh.wiki.github.obj.GitHubRepository;
+
+/**
+ * Web hook data for a push event.
+ * @author Roan
+ * @param ref The full ref that was pushed to, e.g., <code>refs/heads/master</code>.
+ * @param before The SHA hash of the ref before the push.
+ * @param after The SHA hash of the ref after the push.
+ * @param repository The repository that was pushed to.
+ * @see PushHandler
+ */
+public record PushData(
+		String ref,
+		String before,
+		String after,
+		GitHubRepository repository
+	){
+	
+	/**
+	 * Checks if this push updated the master branch of the official osu! wiki repository.
+	 * @return True if ppy/master was updated by this push.
+	 */
+	public boolean isOfficialMaster(){
+		return "refs/heads/master".equals(ref) && repository.isOfficial();
+	}
+}
@@ -0,0 +1,290 @@
+/*
+ * osu! wiki preview site
+ * Copyright (C) 2023  Roan Hofland (roan@roanh.dev) and contributors.
+ * GitHub Repository: https://github.com/RoanH/osuWikiPreview
+ * GitLab Repository: https://git.roanh.dev/roan/osuwikipreview
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package dev.roanh.wiki.docker;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import dev.roanh.wiki.exception.DockerException;
+import dev.roanh.wiki.exception.DockerNotFoundException;
+import dev.roanh.wiki.exception.DockerTimeoutException;
+
+public class DockerClientTest{
+	private Path dir;
+	private ServerSocketChannel server;
+	private Thread acceptor;
+	private final Queue<byte[]> responses = new ConcurrentLinkedQueue<byte[]>();
+	private final List<String> requests = new ArrayList<String>();
+	private DockerClient client;
+	
+	@BeforeEach
+	public void setup() throws IOException{
+		dir = Files.createTempDirectory("docker");
+		Path socket = dir.resolve("docker.sock");
+		server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+		server.bind(UnixDomainSocketAddress.of(socket));
+		acceptor = Thread.ofPlatform().daemon().start(this::serve);
+		client = new DockerClient(socket, Duration.ofSeconds(2L));
+	}
+	
+	@AfterEach
+	public void cleanup() throws IOException, InterruptedException{
+		server.close();
+		acceptor.join();
+		Files.deleteIfExists(dir.resolve("docker.sock"));
+		Files.delete(dir);
+	}
+	
+	@Test
+	public void startContainer() throws DockerException{
+		respond("HTTP/1.1 204 No Content\r\n\r\n");
+		client.startContainer("osu-web-1");
+		assertEquals(List.of("POST /v1.43/containers/osu-web-1/start"), requests());
+	}
+	
+	@Test
+	public void startRunningContainer() throws DockerException{
+		respond("HTTP/1.1 304 Not Modified\r\n\r\n");
+		client.startContainer("osu-web-1");
+	}
+	
+	@Test
+	public void stopMissingContainer(){
+		respond(json(404, "{\"message\":\"No such container: osu-web-1\"}"));
+		DockerNotFoundException e = assertThrows(DockerNotFoundException.class, ()->client.stopContainer("osu-web-1"));
+		assertEquals(404, e.getStatus());
+		assertEquals("No such container: osu-web-1", e.getMessage());
+	}
+	
+	@Test
+	public void serverError(){
+		respond(json(500, "{\"message\":\"driver failed\"}"));
+		DockerException e = assertThrows(DockerException.class, ()->client.removeContainer("osu-web-1"));
+		assertEquals(500, e.getStatus());
+		assertEquals("driver failed", e.getMessage());
+	}
+	
+	@Test
+	public void exec() throws DockerException{
+		respond(json(201, "{\"Id\":\"abc\"}"));
+		
+		ByteArrayOutputStream frames = new ByteArrayOutputStream();
+		frames.writeBytes("HTTP/1.1 200 OK\r\nContent-Type: application/vnd.docker.raw-stream\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+		frames.writeBytes(frame(1, "hello "));
+		frames.writeBytes(frame(1, "world\nsecond"));
+		frames.writeBytes(frame(2, "oops\n"));
+		responses.add(frames.toByteArray());
+		
+		respond(json(200, "{\"ExitCode\":3,\"Running\":false}"));
+		
+		List<String> output = new ArrayList<String>();
+		assertEquals(3, client.exec("osu-web-1", List.of("php", "artisan", "tinker"), output::add, Duration.ofSeconds(2L)));
+		assertEquals(List.of("hello world", "[stderr] oops", "second"), output);
+		assertEquals(List.of("POST /v1.43/containers/osu-web-1/exec", "POST /v1.43/exec/abc/start", "GET /v1.43/exec/abc/json"), requests());
+	}
+	
+	@Test
+	public void runToCompletion() throws DockerException{
+		respond(json(201, "{\"Id\":\"abc\"}"));
+		respond("HTTP/1.1 204 No Content\r\n\r\n");
+		
+		ByteArrayOutputStream frames = new ByteArrayOutputStream();
+		frames.writeBytes("HTTP/1.1 200 OK\r\nContent-Type: application/vnd.docker.multiplexed-stream\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+		frames.writeBytes(frame(1, "Migrating\n"));
+		frames.writeBytes(frame(2, "warning\n"));
+		responses.add(frames.toByteArray());
+		
+		respond(json(200, "{\"StatusCode\":1}"));
+		respond("HTTP/1.1 204 No Content\r\n\r\n");
+		
+		List<String> output = new ArrayList<String>();
+		assertEquals(1, client.runToCompletion("pppy/osu-web:2025.1.1", List.of(), List.of(), List.of("artisan", "migrate"), output::add, Duration.ofSeconds(2L)));
+		assertEquals(List.of("Migrating", "[stderr] warning"), output);
+		assertEquals(List.of("POST /v1.43/containers/create", "POST /v1.43/containers/abc/start", "GET /v1.43/containers/abc/logs?follow=1&stdout=1&stderr=1", "POST /v1.43/containers/abc/wait", "DELETE /v1.43/containers/abc?force=1"), requests());
+	}
+	
+	@Test
+	public void runToCompletionCancelled() throws InterruptedException{
+		respond(json(201, "{\"Id\":\"abc\"}"));
+		respond("HTTP/1.1 204 No Content\r\n\r\n");
+		
+		//no logs response is queued so the command keeps running until cancelled
+		AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+		AtomicBoolean interrupted = new AtomicBoolean();
+		Thread job = Thread.ofPlatform().start(()->{
+			try{
+				client.runToCompletion("pppy/osu-web:2025.1.1", List.of(), List.of(), List.of("artisan", "migrate"), _->{}, Duration.ofSeconds(10L));
+			}catch(DockerException e){
+				error.set(e);
+			}
+			
+			interrupted.set(Thread.currentThread().isInterrupted());
+		});
+		
+		while(requests().size() < 3){
+			Thread.sleep(10L);
+		}
+		
+		respond("HTTP/1.1 204 No Content\r\n\r\n");
+		job.interrupt();
+		job.join();
+		
+		assertTrue(error.get() instanceof DockerException);
+		assertTrue(interrupted.get());
+		assertEquals("DELETE /v1.43/containers/abc?force=1", requests().getLast());
+	}
+	
+	@Test
+	public void pullImage() throws DockerException{
+		respond(chunked("{\"status\":\"Pulling from pppy/osu-web\",\"id\":\"2025.1.1\"}\n", "{\"status\":\"Download complete\"}\n"));
+		
+		List<String> progress = new ArrayList<String>();
+		client.pullImage("pppy/osu-web", "2025.1.1", progress::add, Duration.ofSeconds(2L));
+		assertEquals(List.of("2025.1.1: Pulling from pppy/osu-web", "Download complete"), progress);
+		assertEquals(List.of("POST /v1.43/images/create?fromImage=pppy%2Fosu-web&tag=2025.1.1"), requests());
+	}
+	
+	@Test
+	public void pullImageError(){
+		respond(chunked("{\"status\":\"Pulling from pppy/osu-web\"}\n", "{\"error\":\"manifest unknown\"}\n"));
+		DockerException e = assertThrows(DockerException.class, ()->client.pullImage("pppy/osu-web", "2025.1.1", _->{}, Duration.ofSeconds(2L)));
+		assertEquals("manifest unknown", e.getMessage());
+	}
+	
+	@Test
+	public void timeout(){
+		//no response is queued so the stand-in never answers
+		DockerTimeoutException e = assertThrows(DockerTimeoutException.class, ()->client.pullImage("pppy/osu-web", "2025.1.1", _->{}, Duration.ofMillis(200L)));
+		assertTrue(e.getMessage().contains("pull"));
+	}
+	
+	@Test
+	public void readEnvFile() throws IOException{
+		Path env = dir.resolve(".env");
+		Files.writeString(env, "# comment\nAPP_ENV=production\n\n  APP_DEBUG=false  \nOSU_API_KEY=\n");
+		try{
+			assertEquals(List.of("APP_ENV=production", "APP_DEBUG=false", "OSU_API_KEY="), DockerClient.readEnvFile(env));
+		}finally{
+			Files.delete(env);
+		}
+	}
+	
+	private void serve(){
+		while(server.isOpen()){
+			try(SocketChannel conn = server.accept()){
+				InputStream in = Channels.newInputStream(conn);
+				String head = readHead(in);
+				synchronized(requests){
+					String line = head.substring(0, head.indexOf("\r\n"));
+					requests.add(line.substring(0, line.lastIndexOf(' ')));
+				}
+				
+				for(String header : head.split("\r\n")){
+					if(header.toLowerCase().startsWith("content-length:")){
+						in.readNBytes(Integer.parseInt(header.substring(15).strip()));
+					}
+				}
+				
+				byte[] response = responses.poll();
+				if(response == null){
+					//simulate a hanging daemon until the client gives up
+					in.read();
+				}else{
+					conn.write(ByteBuffer.wrap(response));
+				}
+			}catch(IOException ignore){
+			}
+		}
+	}
+	
+	private List<String> requests(){
+		synchronized(requests){
+			return List.copyOf(requests);
+		}
+	}
+	
+	private void respond(String response){
+		responses.add(response.getBytes(StandardCharsets.UTF_8));
+	}
+	
+	private static String readHead(InputStream in) throws IOException{
+		StringBuilder head = new StringBuilder();
+		while(head.length() < 4 || !head.substring(head.length() - 4).equals("\r\n\r\n")){
+			int b = in.read();
+			if(b == -1){
+				throw new IOException("Connection closed.");
+			}
+			
+			head.append((char)b);
+		}
+		
+		return head.toString();
+	}
+	
+	private static String json(int status, String body){
+		return "HTTP/1.1 " + status + " Status\r\nContent-Type: application/json\r\nContent-Length: " + body.getBytes(StandardCharsets.UTF_8).length + "\r\n\r\n" + body;
+	}
+	
+	private static String chunked(String... chunks){
+		StringBuilder resp = new StringBuilder("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n");
+		for(String chunk : chunks){
+			resp.append(Integer.toHexString(chunk.getBytes(StandardCharsets.UTF_8).length)).append("\r\n").append(chunk).append("\r\n");
+		}
+		
+		return resp.append("0\r\n\r\n").toString();
+	}
+	
+	private static byte[] frame(int stream, String data){
+		byte[] payload = data.getBytes(StandardCharsets.UTF_8);
+		byte[] frame = new byte[8 + payload.length];
+		frame[0] = (byte)stream;
+		frame[4] = (byte)(payload.length >>> 24);
+		frame[5] = (byte)(payload.length >>> 16);
+		frame[6] = (byte)(payload.length >>> 8);
+		frame[7] = (byte)payload.length;
+		System.arraycopy(payload, 0, frame, 8, payload.length);
+		return frame;
+	}
+}
@@ -0,0 +1,210 @@
+/*
+ * osu! wiki preview site
+ * Copyright (C) 2023  Roan Hofland (roan@roanh.dev) and contributors.
+ * GitHub Repository: https://github.com/RoanH/osuWikiPreview
+ * GitLab Repository: https://git.roanh.dev/roan/osuwikipreview
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package dev.roanh.wiki.github;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Map;
+
+import org.eclipse.jgit.dircache.DirCache;
+import org.eclipse.jgit.dircache.DirCacheBuilder;
+import org.eclipse.jgit.dircache.DirCacheEntry;
+import org.eclipse.jgit.internal.storage.dfs.DfsRepositoryDescription;
+import org.eclipse.jgit.internal.storage.dfs.InMemoryRepository;
+import org.eclipse.jgit.lib.CommitBuilder;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpResponseStatus;
+
+public class ContentServerTest{
+	private InMemoryRepository repo;
+	private ObjectId master;
+	private ObjectId branch;
+	private ContentServer server;
+	
+	@BeforeEach
+	public void setup() throws IOException{
+		repo = new InMemoryRepository(new DfsRepositoryDescription("wiki"));
+		master = commit(Map.of("wiki/Main_page/en.md", "main", "wiki/Help/en.md", "help"));
+		branch = commit(Map.of("wiki/Main_page/en.md", "main edited", "news/2025/post.md", "news"), master);
+		server = new ContentServer(12346, repo, ref->{
+			switch(ref){
+			case "master":
+				return master;
+			case "branch":
+				return branch;
+			default:
+				return null;
+			}
+		});
+	}
+	
+	@Test
+	public void compare() throws IOException{
+		FullHttpResponse resp = server.compare("master...branch", null);
+		assertEquals(HttpResponseStatus.OK, resp.status());
+		
+		JsonObject data = parse(resp).getAsJsonObject();
+		assertEquals("ahead", data.get("status").getAsString());
+		assertEquals(master.name(), data.getAsJsonObject("merge_base_commit").get("sha").getAsString());
+		
+		JsonArray files = data.getAsJsonArray("files");
+		assertEquals(3, files.size());
+		assertFile(files, "news/2025/post.md", "added");
+		assertFile(files, "wiki/Help/en.md", "removed");
+		assertFile(files, "wiki/Main_page/en.md", "modified");
+	}
+	
+	@Test
+	public void compareNotModified() throws IOException{
+		String tag = server.compare("master...branch", null).headers().get(HttpHeaderNames.ETAG);
+		assertEquals(HttpResponseStatus.NOT_MODIFIED, server.compare("master...branch", tag).status());
+	}
+	
+	@Test
+	public void compareUnrelated() throws IOException{
+		ObjectId root = commit(Map.of("wiki/Other/en.md", "other"));
+		assertEquals(HttpResponseStatus.NOT_FOUND, server.compare("master..." + root.name(), null).status());
+	}
+	
+	@Test
+	public void contentsFile() throws IOException{
+		JsonObject data = parse(server.contents("wiki/Main_page/en.md", "branch", false, null)).getAsJsonObject();
+		assertEquals("file", data.get("type").getAsString());
+		assertEquals("en.md", data.get("name").getAsString());
+		assertEquals("main edited", new String(Base64.getDecoder().decode(data.get("content").getAsString()), StandardCharsets.UTF_8));
+	}
+	
+	@Test
+	public void contentsRaw() throws IOException{
+		FullHttpResponse resp = server.contents("wiki/Main_page/en.md", "master", true, null);
+		assertEquals("main", resp.content().toString(StandardCharsets.UTF_8));
+		assertEquals(HttpResponseStatus.NOT_MODIFIED, server.contents("wiki/Main_page/en.md", "master", true, resp.headers().get(HttpHeaderNames.ETAG)).status());
+	}
+	
+	@Test
+	public void contentsDirectory() throws IOException{
+		JsonArray data = parse(server.contents("wiki", "master", false, null)).getAsJsonArray();
+		assertEquals(2, data.size());
+		assertEquals("dir", data.get(0).getAsJsonObject().get("type").getAsString());
+		assertEquals("wiki/Help", data.get(0).getAsJsonObject().get("path").getAsString());
+	}
+	
+	@Test
+	public void contentsMissing() throws IOException{
+		assertEquals(HttpResponseStatus.NOT_FOUND, server.contents("wiki/Help/en.md", "branch", false, null).status());
+		assertEquals(HttpResponseStatus.NOT_FOUND, server.contents("wiki/Help/en.md", "unknown", false, null).status());
+	}
+	
+	@Test
+	public void treeRecursive() throws IOException{
+		JsonArray tree = parse(server.tree("master", true, null)).getAsJsonObject().getAsJsonArray("tree");
+		assertEquals(5, tree.size());
+		
+		JsonArray flat = parse(server.tree("master", false, null)).getAsJsonObject().getAsJsonArray("tree");
+		assertEquals(1, flat.size());
+		assertEquals("tree", flat.get(0).getAsJsonObject().get("type").getAsString());
+	}
+	
+	@Test
+	public void blob() throws IOException{
+		String sha = parse(server.contents("wiki/Help/en.md", "master", false, null)).getAsJsonObject().get("sha").getAsString();
+		JsonObject data = parse(server.blob(sha, false, null)).getAsJsonObject();
+		assertEquals(4, data.get("size").getAsInt());
+		assertEquals("help", new String(Base64.getDecoder().decode(data.get("content").getAsString()), StandardCharsets.UTF_8));
+		assertEquals(HttpResponseStatus.NOT_FOUND, server.blob("0000000000000000000000000000000000000000", false, null).status());
+	}
+	
+	@Test
+	public void blobTooLarge() throws IOException{
+		String sha = parse(server.contents("wiki/Help/en.md", "master", false, null)).getAsJsonObject().get("sha").getAsString();
+		ContentServer limited = new ContentServer(12346, repo, _->master, 3);
+		assertEquals(HttpResponseStatus.REQUEST_ENTITY_TOO_LARGE, limited.blob(sha, false, null).status());
+		assertEquals(HttpResponseStatus.REQUEST_ENTITY_TOO_LARGE, limited.blob(sha, true, null).status());
+		assertEquals(HttpResponseStatus.REQUEST_ENTITY_TOO_LARGE, limited.contents("wiki/Help/en.md", "master", false, null).status());
+		assertEquals(HttpResponseStatus.REQUEST_ENTITY_TOO_LARGE, limited.contents("wiki/Help/en.md", "master", true, null).status());
+		assertEquals("help", new ContentServer(12346, repo, _->master, 4).blob(sha, true, null).content().toString(StandardCharsets.UTF_8));
+	}
+	
+	private static JsonElement parse(FullHttpResponse resp){
+		assertEquals(HttpResponseStatus.OK, resp.status());
+		return JsonParser.parseString(resp.content().toString(StandardCharsets.UTF_8));
+	}
+	
+	private static void assertFile(JsonArray files, String path, String status){
+		for(JsonElement file : files){
+			JsonObject obj = file.getAsJsonObject();
+			if(obj.get("filename").getAsString().equals(path)){
+				assertEquals(status, obj.get("status").getAsString());
+				return;
+			}
+		}
+		
+		fail("File not found: " + path);
+	}
+	
+	private ObjectId commit(Map<String, String> files, ObjectId... parents) throws IOException{
+		try(ObjectInserter inserter = repo.newObjectInserter()){
+			DirCache index = DirCache.newInCore();
+			DirCacheBuilder builder = index.builder();
+			files.keySet().stream().sorted().forEach(path->{
+				DirCacheEntry entry = new DirCacheEntry(path);
+				entry.setFileMode(FileMode.REGULAR_FILE);
+				try{
+					entry.setObjectId(inserter.insert(Constants.OBJ_BLOB, files.get(path).getBytes(StandardCharsets.UTF_8)));
+				}catch(IOException e){
+					throw new RuntimeException(e);
+				}
+				builder.add(entry);
+			});
+			builder.finish();
+			
+			CommitBuilder commit = new CommitBuilder();
+			commit.setTreeId(index.writeTree(inserter));
+			commit.setParentIds(parents);
+			commit.setAuthor(new PersonIdent("test", "test@example.com"));
+			commit.setCommitter(commit.getAuthor());
+			commit.setMessage("test");
+			
+			ObjectId id = inserter.insert(commit);
+			inserter.flush();
+			assertTrue(repo.getObjectDatabase().has(id));
+			return id;
+		}
+	}
+}
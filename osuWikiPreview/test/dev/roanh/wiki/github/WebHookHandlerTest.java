@@ -33,6 +33,7 @@ import dev.roanh.infinity.util.Variable;
 import dev.roanh.wiki.github.hooks.IssueCommentCreatedData;
 import dev.roanh.wiki.github.hooks.PullRequestOpenData;
 import dev.roanh.wiki.github.hooks.PullRequestSyncData;
+import dev.roanh.wiki.github.hooks.PushData;
 import dev.roanh.wiki.github.obj.GitHubBranch;
 import dev.roanh.wiki.github.obj.GitHubComment;
 import dev.roanh.wiki.github.obj.GitHubIssue;
@@ -149,6 +150,33 @@ public class WebHookHandlerTest extends WebhookTest{
 		assertOwnRepo(head.repo());
 	}
 	
+	@Test
+	public void pushEvent() throws Exception{
+		Variable<PushData> value = new Variable<PushData>();
+		CountDownLatch latch = new CountDownLatch(1);
+		
+		webhook.addPushHandler(data->{
+			value.setValue(data);
+			latch.countDown();
+		});
+
+		sendPushPayload();
+		latch.await(10, TimeUnit.SECONDS);
+		
+		PushData data = value.getValue();
+		assertNotNull(data);
+		assertEquals("refs/heads/master", data.ref());
+		assertEquals("6113728f27ae82c7b1a177c8d03f9e96e0adf246", data.before());
+		assertEquals("0d1a26e67d8f5eaf1f6ba5c57fc3c7d91ac0fd1c", data.after());
+		assertTrue(data.isOfficialMaster());
+		
+		GitHubRepository repo = data.repository();
+		assertNotNull(repo);
+		assertEquals("osu-wiki", repo.name());
+		assertEquals("ppy", repo.owner().login());
+		assertEquals(UserType.ORGANIZATION, repo.owner().type());
+	}
+	
 	private static void assertMaster(GitHubBranch branch){
 		assertNotNull(branch);
 		assertEquals("RoanH:master", branch.label());